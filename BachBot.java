@@ -1,164 +1,651 @@
 import jm.music.data.Score;
 import jm.util.Play;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 
 // BachBot implements the methods needed for markov chain collection and generation based on said chains. Object BachBot
-// is initialized with the K-Gram length.
+// is initialized with the K-Gram length, every shorter K-Gram length is trained alongside it for backing off.
+//
+// A BachBot can keep training while it generates. Training is serialized by a lock, and generation reads the view
+// of chordST published last, without locking and without ever waiting for training. Chorales added are seen once the
+// model is published again: addAll(), compact(), load() and fromCounts() publish when they are done, add() leaves it
+// to a call to publish(). Pieces are always sampled from one consistent model.
+//
+// Pieces start from the first K-Gram of a chorale, or of one of its phrases, taken from a SeedIndex built alongside
+// the model and published with each view, so generating never reads or parses a chorale file.
 public class BachBot {
 
     public newChordST chordST; // chordST keeps track of all the K-Grams and the changes succeeding them.
+    private final SeedIndex seeds; // Initial K-Grams of the chorales added, guarded by lock.
+    private volatile Published published; // Latest model view and its seeds, null until first published.
+    private final ReentrantLock lock = new ReentrantLock(); // Guards training and freezing of chordST.
+    private final BachBotMetrics metrics; // Timers and counters of this BachBot.
     private final int kLen; // kLen keeps track of the K-Gram length.
     private static final int VOICES = 4; // Number of voices.
     private static final int LOWER_THRESHOLD = 30;
     private static final int UPPER_THRESHOLD = 80;
+    private static final String[] NAMES = names(chorales()); // File names of the chorales, for genID().
+
+    // A model view together with the seeds of the chorales it was trained on. Published as one, so a piece never
+    // starts from a chorale its model has not seen.
+    private static final class Published {
+        private final newChordST model;
+        private final SeedIndex seeds;
+
+        private Published(newChordST model, SeedIndex seeds) {
+            this.model = model;
+            this.seeds = seeds;
+        }
+    }
 
     public BachBot(int kLen) {
         this.kLen = kLen;
         chordST = new newChordST(kLen);
+        seeds = new SeedIndex(kLen);
+        metrics = new BachBotMetrics(this);
     }
 
-    // Static helper method, takes in a roller 2D array and mutates it based on the other argument. It "rolls" all
-    // values forward by one, appending a new value based on the change array.
-    private static void roll(int[][] pRoller, double[][] tRoller, int[] pChange, double[] newT) {
+    // Private constructor, wraps an already trained chordST and the seeds of its chorales.
+    private BachBot(newChordST chordST, SeedIndex seeds) {
+        this.kLen = chordST.kLen();
+        this.chordST = chordST;
+        this.seeds = seeds;
+        metrics = new BachBotMetrics(this);
+        if (seeds.kLen() != kLen) throw new IllegalArgumentException("Incorrect K-Gram Length");
+        published = new Published(chordST.view(), seeds.copy());
+    }
+
+    // Private constructor, a shard that records its timings into the metrics of the BachBot it is trained for.
+    private BachBot(int kLen, BachBotMetrics metrics) {
+        this.kLen = kLen;
+        chordST = new newChordST(kLen);
+        seeds = new SeedIndex(kLen);
+        this.metrics = metrics;
+    }
 
-        // Account for when the roller is of length 1
-        if (pRoller.length != 1) {
+    // Returns the metrics of this BachBot.
+    public BachBotMetrics metrics() {
+        return metrics;
+    }
 
-            // Move values forward, removing the value at roller[0]
-            for (int i = 0; i < pRoller.length - 1; i++) {
-                pRoller[i] = pRoller[i + 1].clone();
-                tRoller[i] = tRoller[i + 1].clone();
+    // Returns the paths of all 371 chorales, chor150.krn is missing from the database.
+    public static List<Path> chorales() {
+        List<Path> chorales = new ArrayList<>();
+        for (int i = 1; i < 372; i++) {
+            if (i != 150) {
+                if (i < 10) {
+                    chorales.add(Paths.get("chor00" + i + ".krn"));
+                } else if (i < 100) {
+                    chorales.add(Paths.get("chor0" + i + ".krn"));
+                } else {
+                    chorales.add(Paths.get("chor" + i + ".krn"));
+                }
             }
+        }
+        return chorales;
+    }
+
+    // Returns a BachBot loaded from model if the file exists, otherwise trained on every chorale, parsed and counted
+    // on every available core, and saved to model unless it is null.
+    public static BachBot loadOrTrain(int kLen, Path model) throws IOException {
+        if (model != null && Files.exists(model)) return load(model);
+        BachBot bot = new BachBot(kLen);
+        bot.addAll(chorales(), Runtime.getRuntime().availableProcessors());
+        if (model != null) bot.save(model);
+        return bot;
+    }
 
-            tRoller[tRoller.length - 1] = newT.clone();
+    // Saves the trained model to path and its seeds next to it, they can be loaded back with load() instead of
+    // retraining.
+    public void save(Path path) throws IOException {
+        lock.lock();
+        try {
+            freeze();
+            chordST.save(path);
+            seeds.save(seedPath(path));
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            // Calculate new value based on change array
-            pRoller[pRoller.length - 1] = new int[VOICES];
-            for (int i = 0; i < VOICES; i++) {
-                pRoller[pRoller.length - 1][i] = pRoller[pRoller.length - 2][i] + pChange[i];
-            }
-        } else {
-            for (int i = 0; i < VOICES; i++) {
-                pRoller[0][i] = pRoller[0][i] + pChange[i];
-            }
-            tRoller[0] = newT.clone();
+    // Saves the counts of the chorales added so far to path and their seeds next to it, so models trained in other
+    // processes can be combined with fromCounts(). The model must not have been compacted.
+    public void saveCounts(Path path) throws IOException {
+        lock.lock();
+        try {
+            chordST.saveCounts(path);
+            seeds.save(seedPath(path));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Merges the count files at inputs, written by saveCounts() or merged before, into one at output, and their seeds
+    // in input order next to it. Only one record of each input is held in memory at a time.
+    public static void mergeCounts(List<Path> inputs, Path output) throws IOException {
+        CountFile.merge(inputs, output);
+        mergeSeeds(inputs).save(seedPath(output));
+    }
+
+    // Returns a BachBot built from the count files at inputs, written by saveCounts() or mergeCounts(), merged on the
+    // fly, with their seeds in input order. The model is the same as that of one BachBot trained on every chorale of
+    // the inputs, so it generates the same pieces from the same chorale and seed.
+    public static BachBot fromCounts(List<Path> inputs) throws IOException {
+        newChordST model = CountFile.train(inputs);
+        model.freeze();
+        return new BachBot(model, mergeSeeds(inputs));
+    }
+
+    // Static helper method, the seeds saved next to the count files at inputs, in input order.
+    private static SeedIndex mergeSeeds(List<Path> inputs) throws IOException {
+        SeedIndex res = null;
+        for (Path p : inputs) {
+            SeedIndex seeds = SeedIndex.load(seedPath(p));
+            if (res == null) res = new SeedIndex(seeds.kLen());
+            res.addAll(seeds);
         }
+        return res;
+    }
 
+    // Freezes the chorales added so far into a new view of the model, which generation switches to from then on.
+    // Generation never freezes the model itself, it keeps reading the previous view until this is called.
+    public void publish() {
+        lock.lock();
+        try {
+            freeze();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Prunes the model to fit a snapshot of budgetBytes, keeping at most maxSuccessors successors per K-Gram, and
+    // publishes it. See newChordST.compact(). Returns a report of what was removed.
+    public Compaction compact(long budgetBytes, int maxSuccessors) {
+        lock.lock();
+        try {
+            Compaction res = chordST.compact(budgetBytes, maxSuccessors);
+            freeze();
+            return res;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Private helper method, freezes chordST if it has been trained since it was last frozen, compiling its state
+    // graph, and publishes its view with a copy of the seeds. Caller must hold lock.
+    private void freeze() {
+        if (!chordST.isFrozen()) {
+            long start = System.nanoTime();
+            chordST.freeze();
+            chordST.view().graph();
+            metrics.record(BachBotMetrics.Phase.FREEZE, start);
+        }
+        newChordST view = chordST.view();
+        if (published == null || published.model != view) published = new Published(view, seeds.copy());
+    }
+
+    // Private helper method, parses the chorale name.
+    private Kern parse(String name) {
+        long start = System.nanoTime();
+        Kern res = new Kern(name);
+        metrics.record(BachBotMetrics.Phase.PARSE, start);
+        return res;
+    }
+
+    // Private helper method, returns the model and seeds generation should read, the latest published.
+    private Published published() {
+        Published res = published;
+        if (res == null) throw new IllegalStateException("No model published, publish() after adding chorales");
+        return res;
+    }
+
+    // Private helper method, returns the seeds to start the named chorale from: the published ones if it was trained
+    // on, otherwise an index of the chorale alone, parsed from its file.
+    private SeedIndex seeds(SeedIndex published, String name) {
+        if (published.find(name) >= 0) return published;
+        SeedIndex res = new SeedIndex(kLen);
+        res.add(parse(name));
+        return res;
+    }
+
+    // Loads a BachBot saved by save(), the model file is memory-mapped rather than read up front. The seeds must have
+    // been saved next to it, a model without them fails to load rather than guessing its chorales.
+    public static BachBot load(Path path) throws IOException {
+        Path seedPath = seedPath(path);
+        if (!Files.exists(seedPath)) {
+            throw new NoSuchFileException(seedPath.toString(), null, "Seeds of model " + path + " missing");
+        }
+        return new BachBot(newChordST.load(path), SeedIndex.load(seedPath));
+    }
+
+    // Static helper method, the file the seeds of the model saved at path are kept in.
+    private static Path seedPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".seeds");
+    }
+
+    // Static helper method, applies the pitch changes to the latest chord and shifts the whole chord by an octave
+    // whenever a voice leaves the thresholds. Returns the number of octave corrections applied.
+    private static int roll(int[] chord, int[] pChange) {
+        for (int i = 0; i < VOICES; i++) chord[i] += pChange[i];
+
+        int corrections = 0;
         for (int i = 0; i < VOICES; i++) {
-            if (pRoller[pRoller.length - 1][i] < LOWER_THRESHOLD && pRoller[pRoller.length - 1][i] != -2147483648) {
-                for (int j = 0; j < VOICES; j++) {
-                    pRoller[pRoller.length - 1][j] += 12;
-                }
-            } else if (pRoller[pRoller.length - 1][i] > UPPER_THRESHOLD) {
-                for (int j = 0; j < VOICES; j++) {
-                    pRoller[pRoller.length - 1][j] -= 12;
-                }
+            if (chord[i] < LOWER_THRESHOLD && chord[i] != -2147483648) {
+                for (int j = 0; j < VOICES; j++) chord[j] += 12;
+                corrections++;
+            } else if (chord[i] > UPPER_THRESHOLD) {
+                for (int j = 0; j < VOICES; j++) chord[j] -= 12;
+                corrections++;
             }
         }
+        return corrections;
     }
 
     // Generates a random chorale String
     public static String genID() {
-        // Samples a random chorale for the initial K-Gram
-        int id = (int) (Math.random() * 371);
-        String name;
+        return genID(new SplittableRandom());
+    }
 
-        if (id < 10) {
-            name = "chor00" + id + ".krn";
-        } else if (id < 100) {
-            name = "chor0" + id + ".krn";
-        } else if (id < 150) {
-            name = "chor" + id + ".krn";
-        } else {
-            name = "chor" + (id + 1) + ".krn";
-        }
-        return name;
+    // Generates a random chorale String, drawing from random.
+    public static String genID(SplittableRandom random) {
+        return NAMES[random.nextInt(NAMES.length)];
     }
 
-    // Parses the input Kern file, adding to the newChordST instance variable, does not mutate original Kern file.
+    // Static helper method, the file names of paths.
+    private static String[] names(List<Path> paths) {
+        String[] res = new String[paths.size()];
+        for (int i = 0; i < res.length; i++) res[i] = paths.get(i).toString();
+        return res;
+    }
+
+    // Parses the input Kern file, adding to the newChordST instance variable, does not mutate original Kern file. Safe
+    // to call while generating, the chorale is seen by pieces started after the next publish().
     public void add(Kern file) {
+        lock.lock();
+        try {
+            long start = System.nanoTime();
+            count(file);
+            seeds.add(file);
+            metrics.record(BachBotMetrics.Phase.ADD, start);
+            metrics.chorale();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        ArrayList<ArrayList<Integer>> filePitch = file.getPitch();
-        ArrayList<ArrayList<Double>> fileTime = file.getTimes();
+    // Private helper method, counts the K-Grams of file into chordST. Caller must hold lock.
+    private void count(Kern file) {
+        int n = file.length();
+        if (n == 0) return;
+        int width = KGram.CHORD_WIDTH;
 
-        // Create "circular text" by appending chords to the end
-        for (int i = 0; i < kLen; i++) {
+        // Pack every chord once, followed by the first kLen chords again to create "circular text", so each K-Gram is a
+        // window of the packed chords
+        int[] packed = new int[(n + kLen) * width];
+        int[] chord = new int[VOICES];
+        int[] ticks = new int[VOICES];
+        for (int i = 0; i < n + kLen; i++) {
             for (int j = 0; j < VOICES; j++) {
-                filePitch.get(j).add(filePitch.get(j).get(i));
-                fileTime.get(j).add(fileTime.get(j).get(i));
+                chord[j] = file.getPitch(j, i % n);
+                ticks[j] = file.getTicks(j, i % n);
             }
+            newChordST.packChord(chord, ticks, packed, i * width);
         }
 
-        // Loop through 2D array to add K-Grams and succeeding chords
-        for (int i = 0; i < filePitch.get(0).size() - kLen; i++) {
+        // Loop through the windows to add K-Grams and succeeding changes
+        int[] value = new int[ContextTrie.VALUE_WIDTH];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < VOICES; j++) {
+                value[j] = file.getPitch(j, (i + kLen) % n) - file.getPitch(j, (i + kLen - 1) % n);
+                value[j + VOICES] = file.getTicks(j, (i + kLen) % n);
+            }
+            chordST.put(packed, i * width, value, 0, 1);
+        }
+    }
+
+    // Parses and adds every chorale in files using parallelism worker threads. The files are split into consecutive
+    // slices, each worker counts its slices into a private shard, and the shards are merged back in slice order, so
+    // the result is identical to adding the files one by one in iteration order. Parsing and counting run outside the
+    // training lock, only the merges hold it. The model is published once every file is added.
+    public void addAll(Collection<Path> files, int parallelism) {
+        List<Path> paths = new ArrayList<>(files);
+        addAll(paths.size(), i -> parse(paths.get(i).toString()), parallelism);
+    }
+
+    // Adds every chorale of corpus as addAll(files, parallelism) does, reading them in place rather than parsing.
+    public void addAll(KernCorpus corpus, int parallelism) {
+        addAll(corpus.size(), corpus::get, parallelism);
+    }
 
-            // Transpose data to 2D int array seq
-            int[][] pSeq = new int[kLen][VOICES];
-            double[][] tSeq = new double[kLen][VOICES];
+    // Private helper method, adds chorales 0 to size - 1, each returned by chorale, in slices as described above.
+    private void addAll(int size, IntFunction<Kern> chorale, int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be positive");
+        int slices = Math.min(size, parallelism * 2);
+        if (slices <= 1) {
+            for (int i = 0; i < size; i++) add(chorale.apply(i));
+            publish();
+            return;
+        }
 
-            for (int j = 0; j < kLen; j++) {
-                for (int k = 0; k < VOICES; k++) {
-                    pSeq[j][k] = filePitch.get(k).get(i + j);
-                    tSeq[j][k] = fileTime.get(k).get(i + j);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Future<BachBot>> shards = new ArrayList<>();
+            for (int s = 0; s < slices; s++) {
+                int from = s * size / slices;
+                int to = (s + 1) * size / slices;
+                shards.add(pool.submit(() -> {
+                    BachBot shard = new BachBot(kLen, metrics);
+                    for (int i = from; i < to; i++) shard.add(chorale.apply(i));
+                    return shard;
+                }));
+            }
+            for (Future<BachBot> shard : shards) {
+                BachBot counted = shard.get();
+                lock.lock();
+                try {
+                    chordST.merge(counted.chordST);
+                    seeds.addAll(counted.seeds);
+                } finally {
+                    lock.unlock();
                 }
             }
+            publish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading chorales", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not load chorales", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
 
-            // Calculating succeeding change
-            int[] pSucceeding = new int[VOICES];
-            double[] tSucceeding = new double[VOICES];
+    // Generates chord sentence, length based on input, initial K-Gram the first chords of the named chorale, read from
+    // the seeds when it was trained on and parsed from its file otherwise. Generation walks the model's StateGraph:
+    // each sampled successor leads straight to the next K-Gram, and only the latest chord is kept in absolute
+    // pitches, so each step costs the same at any K-Gram length and allocates nothing.
+    public Kern generate(int length, String name) {
+        return generate(length, name, new SplittableRandom());
+    }
+
+    // Generates chord sentence of the given length from seed alone. The initial K-Gram and every successor are drawn
+    // from one random stream seeded with seed, so the same model, seed and length always give the same piece.
+    public Kern generate(int length, long seed) {
+        return generate(length, new SplittableRandom(seed), false);
+    }
 
+    // Generates chord sentence of the given length from the start of a chorale drawn from random, or from the start of
+    // any of their phrases if phrases is true, then samples successors from random.
+    public Kern generate(int length, SplittableRandom random, boolean phrases) {
+        Published p = published();
+        int seed = phrases ? p.seeds.samplePhrase(random) : p.seeds.sample(random);
+        return generate(p.model, p.seeds, seed, length, random);
+    }
+
+    // Generates chord sentence as generate(length, name), sampling successors from random.
+    public Kern generate(int length, String name, SplittableRandom random) {
+        Published p = published();
+        SeedIndex seeds = seeds(p.seeds, name);
+        return generate(p.model, seeds, seeds.find(name), length, random);
+    }
+
+    // Private helper method, generates chord sentence from the published model view, starting from seed.
+    private Kern generate(newChordST model, SeedIndex seeds, int seed, int length, SplittableRandom random) {
+        return candidate(model, seeds, seed, length, random, -1).piece;
+    }
+
+    // Private helper method, generates chord sentence as generate(model, seeds, seed, length, random) and scores its
+    // voice leading as candidate index, or skips scoring if index is negative.
+    private VoiceLeading.Candidate candidate(newChordST model, SeedIndex seeds, int seed, int length,
+                                             SplittableRandom random, int index) {
+        int[][] pResult = new int[VOICES][kLen + length];
+        int[][] tResult = new int[VOICES][kLen + length];
+        int[] next = new int[1];
+        long corrections = run(model, seeds, seed, length, random, (pitch, ticks) -> {
             for (int j = 0; j < VOICES; j++) {
-                pSucceeding[j] = filePitch.get(j).get(i + kLen) - filePitch.get(j).get(i + kLen - 1);
-                tSucceeding[j] = fileTime.get(j).get(i + kLen);
+                pResult[j][next[0]] = pitch[j];
+                tResult[j][next[0]] = ticks[j];
             }
+            next[0]++;
+        }, null);
+        Kern piece = new Kern(pResult, tResult);
+        if (index < 0) return new VoiceLeading.Candidate(index, piece, 0, 0, 0, corrections);
+        return VoiceLeading.score(index, piece, pResult, kLen + length, corrections);
+    }
+
+    // Generates chord sentence as generate(length, name, random), but hands every chord to chords as soon as it is
+    // generated instead of collecting them, the initial K-Gram first. Nothing is kept per chord, so a piece of any
+    // length takes constant memory. The pitch and duration arrays passed to chords are reused for the next chord.
+    // Time spent in chords, such as writing MIDI, is left out of the GENERATE metric.
+    public void stream(long length, String name, SplittableRandom random, BiConsumer<int[], int[]> chords) {
+        Published p = published();
+        SeedIndex seeds = seeds(p.seeds, name);
+        long[] consumed = new long[1];
+        run(p.model, seeds, seeds.find(name), length, random, (pitch, ticks) -> {
+            long start = System.nanoTime();
+            chords.accept(pitch, ticks);
+            consumed[0] += System.nanoTime() - start;
+        }, consumed);
+    }
 
-            chordST.put(pSeq, tSeq, pSucceeding, tSucceeding);
+    // Private helper method, generates from the published model view and seed into chords, recording its time,
+    // lookups and octave corrections. The nanoseconds chords reports in consumed, if not null, are not counted as
+    // generation time. Returns the number of octave corrections applied.
+    private long run(newChordST model, SeedIndex seeds, int seed, long length, SplittableRandom random,
+                     BiConsumer<int[], int[]> chords, long[] consumed) {
+        long start = System.nanoTime();
+        int[] lookups = new int[3];
+        int[] corrections = new int[VOICES + 1];
+        try {
+            run(model, seeds, seed, length, random, chords, lookups, corrections);
+            long res = 0;
+            for (int c = 1; c <= VOICES; c++) res += (long) c * corrections[c];
+            return res;
+        } finally {
+            metrics.lookups(lookups[0], lookups[1], lookups[2]);
+            metrics.corrections(corrections);
+            metrics.record(BachBotMetrics.Phase.GENERATE, start + (consumed == null ? 0 : consumed[0]));
         }
     }
 
-    // Generates chord sentence, length based on input, initial K-Gram based on input.
-    public Kern generate(int length, String name) {
+    // Private helper method, the generation loop. Counts full K-Gram hits, backoffs and misses into lookups, and the
+    // chords needing each number of octave corrections into corrections. Only the initial K-Gram is packed and looked
+    // up, from then on each step follows an edge of the model's state graph. A miss carries on from the nearest known
+    // K-Gram rather than aborting the piece.
+    private void run(newChordST model, SeedIndex seeds, int seed, long length, SplittableRandom random,
+                     BiConsumer<int[], int[]> chords, int[] lookups, int[] corrections) {
+        int width = KGram.CHORD_WIDTH;
+        int[] packed = new int[kLen * width];
+        int[] chord = new int[VOICES];
+        int[] ticks = new int[VOICES];
+        int[] change = new int[VOICES];
 
-        // Sample first K-Gram to roller
-        Kern initialKern = new Kern(name);
-        int[][] pRoller = new int[kLen][VOICES];
-        double[][] tRoller = new double[kLen][VOICES];
+        // Copy first K-Gram from the seed
         for (int i = 0; i < kLen; i++) {
             for (int j = 0; j < VOICES; j++) {
-                pRoller[i][j] = initialKern.getPitch().get(j).get(i);
-                tRoller[i][j] = initialKern.getTimes().get(j).get(i);
+                chord[j] = seeds.pitch(seed, i, j);
+                ticks[j] = seeds.ticks(seed, i, j);
             }
+            newChordST.packChord(chord, ticks, packed, i * width);
+            chords.accept(chord, ticks);
         }
+        int e = model.find(packed, 0, KGram.hash(packed));
+        boolean missed = e < 0;
+        if (missed) e = model.nearest(packed, 0, kLen);
+        if (e < 0) throw new IllegalStateException("Model has no K-Grams");
 
-        // Add initial roller results to results array
-        ArrayList<ArrayList<Integer>> pResult = new ArrayList<>();
-        ArrayList<ArrayList<Double>> tResult = new ArrayList<>();
-        for (int i = 0; i < VOICES; i++) {
-            pResult.add(new ArrayList<>());
-            tResult.add(new ArrayList<>());
-            for (int j = 0; j < kLen; j++) {
-                pResult.get(i).add(pRoller[j][i]);
-                tResult.get(i).add(tRoller[j][i]);
+        // Generate chord, output generation
+        StateGraph graph = model.graph();
+        for (long i = 0; i < length; i++) {
+            if (missed) lookups[2]++;
+            else lookups[graph.order(e) == kLen ? 0 : 1]++;
+            int s = graph.sample(e, random);
+            for (int j = 0; j < VOICES; j++) {
+                change[j] = graph.change(s, j);
+                ticks[j] = graph.ticks(s, j);
             }
+            corrections[roll(chord, change)]++;
+            e = graph.next(s);
+            missed = e < 0;
+            if (missed) {
+                newChordST.packChord(chord, ticks, packed, 0);
+                e = model.nearest(packed, 0, 1);
+            }
+
+            chords.accept(chord, ticks);
         }
+    }
 
-        // Generate chord, output generation
-        for (int i = 0; i < length; i++) {
-            //StdOut.println();
-            //StdOut.println(i);
+    // Generates count chord sentences of the given length on parallelism worker threads. Each piece gets its own
+    // random stream split off one root stream seeded with seed, which it uses to pick its initial K-Gram with
+    // seedSelector and to sample successors, so a batch is reproducible regardless of parallelism. The model is taken
+    // once up front, so chorales added during the batch are not mixed into it. Pieces are returned in order as they
+    // finish, with at most a few per worker generated ahead of the caller. A caller that stops before the end must
+    // close the batch, a batch read to the end or whose next() throws is closed already.
+    public Batch generateBatch(int count, int length, Function<SplittableRandom, String> seedSelector,
+                                        int parallelism, long seed) {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be positive");
+        Published p = published();
+        SplittableRandom root = new SplittableRandom(seed);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        int ahead = parallelism * 4;
 
-            newChordST.StupidAssTuple temp = chordST.gen(pRoller, tRoller);
-            roll(pRoller, tRoller, temp.dPitch, temp.time);
+        return new Batch() {
+            private final ArrayDeque<Future<Kern>> pending = new ArrayDeque<>();
+            private int submitted;
+            private boolean closed;
 
-            for (int j = 0; j < VOICES; j++) {
-                pResult.get(j).add(pRoller[pRoller.length - 1][j]);
-                tResult.get(j).add(temp.time[j]);
+            // Private helper method, keeps up to ahead pieces in flight.
+            private void fill() {
+                while (!closed && submitted < count && pending.size() < ahead) {
+                    SplittableRandom random = root.split();
+                    pending.add(pool.submit(() -> {
+                        String name = seedSelector.apply(random);
+                        SeedIndex seeds = seeds(p.seeds, name);
+                        return generate(p.model, seeds, seeds.find(name), length, random);
+                    }));
+                    submitted++;
+                }
+                if (submitted == count) pool.shutdown();
+            }
+
+            @Override
+            public boolean hasNext() {
+                fill();
+                return !pending.isEmpty();
+            }
+
+            @Override
+            public Kern next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                try {
+                    return pending.poll().get();
+                } catch (InterruptedException e) {
+                    close();
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while generating", e);
+                } catch (ExecutionException e) {
+                    close();
+                    if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                    throw new RuntimeException("Could not generate", e.getCause());
+                }
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+                for (Future<Kern> f : pending) f.cancel(true);
+                pending.clear();
+                pool.shutdownNow();
+            }
+        };
+    }
+
+    // Pieces of a batch from generateBatch(), in order. Closing it cancels the pieces not yet returned.
+    public interface Batch extends Iterator<Kern>, AutoCloseable {
+        @Override
+        void close();
+    }
+
+    // Generates n candidate chord sentences of the given length on parallelism worker threads, all from the start of
+    // one chorale drawn from seed, and returns the m with the least VoiceLeading penalty, best first. Candidates get
+    // their own random streams split off one root stream seeded with seed and ties go to the earlier candidate, so
+    // the result is reproducible regardless of parallelism. Each worker only keeps its own best m.
+    public List<VoiceLeading.Candidate> generateBest(int n, int m, int length, long seed, int parallelism) {
+        Published p = published();
+        SplittableRandom root = new SplittableRandom(seed);
+        return generateBest(p.model, p.seeds, p.seeds.sample(root), n, m, length, root, parallelism);
+    }
+
+    // Generates n candidates as generateBest(n, m, length, seed, parallelism), from the start of the named chorale.
+    public List<VoiceLeading.Candidate> generateBest(int n, int m, int length, String name, long seed,
+                                                     int parallelism) {
+        Published p = published();
+        SeedIndex seeds = seeds(p.seeds, name);
+        return generateBest(p.model, seeds, seeds.find(name), n, m, length, new SplittableRandom(seed), parallelism);
+    }
+
+    // Private helper method, generates n candidates from seed in slices, one worker task each, and merges the best m
+    // of every slice.
+    private List<VoiceLeading.Candidate> generateBest(newChordST model, SeedIndex seeds, int seed, int n, int m,
+                                                      int length, SplittableRandom root, int parallelism) {
+        if (n < 1 || m < 1) throw new IllegalArgumentException("Need at least one candidate to keep");
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be positive");
+        Comparator<VoiceLeading.Candidate> order = Comparator.<VoiceLeading.Candidate>comparingLong(c -> c.penalty)
+                .thenComparingInt(c -> c.index);
+        SplittableRandom[] randoms = new SplittableRandom[n];
+        for (int i = 0; i < n; i++) randoms[i] = root.split();
+
+        int slices = Math.min(n, parallelism * 4);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Future<List<VoiceLeading.Candidate>>> best = new ArrayList<>();
+            for (int s = 0; s < slices; s++) {
+                int from = s * n / slices;
+                int to = (s + 1) * n / slices;
+                best.add(pool.submit(() -> {
+                    // Worst of the slice's best at the head, dropped as better ones come in
+                    PriorityQueue<VoiceLeading.Candidate> kept = new PriorityQueue<>(m + 1, order.reversed());
+                    for (int i = from; i < to; i++) {
+                        kept.add(candidate(model, seeds, seed, length, randoms[i], i));
+                        if (kept.size() > m) kept.poll();
+                    }
+                    return new ArrayList<>(kept);
+                }));
             }
-            //StdOut.println(Arrays.deepToString(pRoller));
-            //StdOut.println(Arrays.deepToString(tRoller));
+            List<VoiceLeading.Candidate> res = new ArrayList<>();
+            for (Future<List<VoiceLeading.Candidate>> f : best) res.addAll(f.get());
+            res.sort(order);
+            return new ArrayList<>(res.subList(0, Math.min(m, res.size())));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while generating", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException("Could not generate", e.getCause());
+        } finally {
+            pool.shutdown();
         }
-        return new Kern(pResult, tResult);
     }
 
     // Tests class methods, command line input K-Gram length and generated length
@@ -171,6 +658,7 @@ public class BachBot {
         tester.add(new Kern("chor003.krn"));
         tester.add(new Kern("chor004.krn"));
         tester.add(new Kern("chor005.krn"));
+        tester.publish();
 
         // Generates sample
         Kern generated = tester.generate(20, "chor001.krn");
@@ -2,47 +2,42 @@ import jm.gui.show.ShowScore;
 import jm.music.data.Score;
 import jm.util.Play;
 
+import java.awt.GraphicsEnvironment;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 // BachBotClient is the client class, it takes, from command line input, three integers. The first of which specify
 // the BachBot K-Gram length, the second specifies to instrument type (for details refer to jMusic instrument types
-// documentation, 6 = harpsichord), the third specifies the number of chords generated.
+// documentation, 6 = harpsichord), the third specifies the number of chords generated. An optional fourth argument
+// names a model file, which is loaded if it exists and written after training otherwise, an optional fifth argument
+// seeds generation so the same seed always gives the same piece. The piece is written to generated.mid, and shown and
+// played as well unless running headless.
 public class BachBotClient {
 
-    // Loads in all 371 chorales, chor150.krn is missing from database. Plays chor001.krn as sample, then generates
-    // based on input.
-    public static void main(String[] args) {
+    // Loads the model, or trains it on all 370 chorales (chor150.krn is missing from database), then generates based
+    // on input.
+    public static void main(String[] args) throws IOException {
 
         // Initialize BachBot
         if (Integer.parseInt(args[0]) > 40) throw new IllegalArgumentException("Unsupported K-Gram length");
-        BachBot bBot = new BachBot(Integer.parseInt(args[0]));
+        Path model = args.length > 3 ? Paths.get(args[3]) : null;
+        BachBot bBot = BachBot.loadOrTrain(Integer.parseInt(args[0]), model);
 
-        // Load chorales
-        for (int i = 1; i < 372; i++) {
-            if (i != 150) {
-                if (i < 10) {
-                    bBot.add(new Kern("chor00" + i + ".krn"));
-                } else if (i < 100) {
-                    bBot.add(new Kern("chor0" + i + ".krn"));
-                } else {
-                    bBot.add(new Kern("chor" + i + ".krn"));
-                }
-            }
+        // Generate, play, and display generated chords
+        Kern generated;
+        if (args.length > 4) {
+            generated = bBot.generate(Integer.parseInt(args[2]), Long.parseLong(args[4]));
+        } else {
+            generated = bBot.generate(Integer.parseInt(args[2]), BachBot.genID());
         }
+        generated.writeMidi(Files.newOutputStream(Paths.get("generated.mid")), Integer.parseInt(args[1]), 80);
+        StdOut.println(bBot.metrics().snapshot());
+        if (GraphicsEnvironment.isHeadless()) return;
 
-        // Load, play, and display chor001.krn
-//        Kern chor001 = new Kern("chor001.krn");
-//        Score score = chor001.getScore(6);
-//        score.setTempo(100);
-//        ShowScore chor = new ShowScore(score);
-//        chor.saveMidi();
-        // chor.openMidi();
-        // Play.midi(score);
-
-        // Generate, play, and display generated chords
-        Kern generated = bBot.generate(Integer.parseInt(args[2]), BachBot.genID());
         Score newScore = generated.getScore(Integer.parseInt(args[1]));
-        
-        ShowScore gen = new ShowScore(newScore);
-        gen.saveMidi();
+        new ShowScore(newScore);
         newScore.setTempo(80);
         Play.midi(newScore);
     }
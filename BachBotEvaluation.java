@@ -0,0 +1,293 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// BachBotEvaluation scores how well each K-Gram length models the chorales by cross-validation: the corpus is split
+// into folds, and every chorale is scored by a model trained on the other folds. Reported per K-Gram length are the
+// log-likelihood of the held-out chords and its perplexity, how many held-out contexts were never seen in training
+// (where generation backs off, and where it used to fail with "K-Gram Does Not Appear"), and how many could not be
+// found even by their newest chord, where generation falls back to the nearest known chord.
+//
+// Nothing is trained per K-Gram length or per fold. A model of length kMax holds every shorter length, counted over
+// the same windows as a model of that length would be, so one model of the longest length serves every length by
+// backing off from at most k chords. The model of a fold's complement is never built either: the corpus model and a
+// model of each fold are trained once, and training counts are the corpus counts less those of the held-out fold.
+//
+// Probabilities are interpolated down the chain of suffixes (Witten-Bell), starting from a uniform guess over every
+// successor seen in training, so a successor never seen after its context still gets a finite score. Held-out chorales
+// are scored in parallel, wrapping around at the end like training does.
+public class BachBotEvaluation {
+
+    private static final int VOICES = 4;
+    private static final int WIDTH = KGram.CHORD_WIDTH;
+
+    // Cross-validated scores of one K-Gram length.
+    public static class Result {
+        public final int k; // K-Gram length.
+        public final long chords; // Held-out chords scored.
+        public final double logLikelihood; // Natural log probability of every held-out chord.
+        public final long unseen; // Chords whose whole context was not seen in training.
+        public final long misses; // Chords whose newest context chord was not seen in training either.
+
+        public Result(int k, long chords, double logLikelihood, long unseen, long misses) {
+            this.k = k;
+            this.chords = chords;
+            this.logLikelihood = logLikelihood;
+            this.unseen = unseen;
+            this.misses = misses;
+        }
+
+        // Returns the perplexity per held-out chord.
+        public double perplexity() {
+            return Math.exp(-logLikelihood / chords);
+        }
+
+        // Returns the share of held-out chords whose context was not seen in training.
+        public double unseenRate() {
+            return (double) unseen / chords;
+        }
+
+        // Returns the share of held-out chords generation could only continue from a nearest neighbour.
+        public double missRate() {
+            return (double) misses / chords;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("k %2d  log-likelihood %12.1f  perplexity %8.3f  unseen %6.2f%%  misses %5.2f%%", k,
+                    logLikelihood, perplexity(), 100 * unseenRate(), 100 * missRate());
+        }
+    }
+
+    // Held-out scores of one chorale for every K-Gram length.
+    private static class Scores {
+        private final double[] logLikelihood;
+        private final long[] unseen;
+        private long chords;
+        private long misses;
+
+        private Scores(int maxK) {
+            logLikelihood = new double[maxK + 1];
+            unseen = new long[maxK + 1];
+        }
+    }
+
+    // Evaluates every K-Gram length from 1 to maxK on corpus with the given number of folds, chorale i being held out
+    // in fold i % folds, using parallelism worker threads. Returns the results in order of K-Gram length.
+    public static List<Result> evaluate(List<Kern> corpus, int maxK, int folds, int parallelism) {
+        if (maxK < 1) throw new IllegalArgumentException("K-Gram length must be positive");
+        if (folds < 2 || folds > corpus.size()) {
+            throw new IllegalArgumentException("Need 2 to " + corpus.size() + " folds");
+        }
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be positive");
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            // Count each fold, then add the folds up into the corpus model
+            List<Future<newChordST>> counted = new ArrayList<>();
+            for (int f = 0; f < folds; f++) {
+                int fold = f;
+                counted.add(pool.submit(() -> {
+                    BachBot bot = new BachBot(maxK);
+                    for (int i = fold; i < corpus.size(); i += folds) bot.add(corpus.get(i));
+                    return bot.chordST;
+                }));
+            }
+            newChordST all = new newChordST(maxK);
+            ChordSnapshot[] held = new ChordSnapshot[folds];
+            for (int f = 0; f < folds; f++) {
+                newChordST fold = counted.get(f).get();
+                all.merge(fold);
+                held[f] = fold.snapshot();
+            }
+            ChordSnapshot total = all.snapshot();
+            double[] uniform = new double[folds];
+            for (int f = 0; f < folds; f++) uniform[f] = 1.0 / (trained(total, held[f]) + 1);
+
+            // Score the chorales, summed in corpus order so results do not depend on parallelism
+            List<Future<Scores>> scored = new ArrayList<>();
+            for (int i = 0; i < corpus.size(); i++) {
+                Kern chorale = corpus.get(i);
+                ChordSnapshot fold = held[i % folds];
+                double prior = uniform[i % folds];
+                scored.add(pool.submit(() -> score(chorale, total, fold, prior, maxK)));
+            }
+            Scores sum = new Scores(maxK);
+            for (Future<Scores> f : scored) {
+                Scores s = f.get();
+                sum.chords += s.chords;
+                sum.misses += s.misses;
+                for (int k = 1; k <= maxK; k++) {
+                    sum.logLikelihood[k] += s.logLikelihood[k];
+                    sum.unseen[k] += s.unseen[k];
+                }
+            }
+
+            List<Result> res = new ArrayList<>();
+            for (int k = 1; k <= maxK; k++) {
+                res.add(new Result(k, sum.chords, sum.logLikelihood[k], sum.unseen[k], sum.misses));
+            }
+            return res;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while evaluating", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not evaluate", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Private helper method, scores every chord of chorale under the counts of total less those of fold, which holds
+    // the chorale, for every K-Gram length up to maxK. uniform is the guess interpolation starts from.
+    private static Scores score(Kern chorale, ChordSnapshot total, ChordSnapshot fold, double uniform, int maxK) {
+        Scores res = new Scores(maxK);
+        int n = chorale.length();
+        int[] packed = new int[maxK * WIDTH];
+        int[] hashes = new int[maxK];
+        int[] chord = new int[VOICES];
+        int[] ticks = new int[VOICES];
+        int[] value = new int[2 * VOICES];
+        int[] totalChain = new int[maxK + 1];
+        int[] foldChain = new int[maxK + 1];
+
+        for (int i = 0; i < n; i++) {
+            // Context of maxK chords and the change to the chord after it, as training counts them
+            for (int c = 0; c < maxK; c++) {
+                for (int j = 0; j < VOICES; j++) {
+                    chord[j] = chorale.getPitch(j, (i + c) % n);
+                    ticks[j] = chorale.getTicks(j, (i + c) % n);
+                }
+                newChordST.packChord(chord, ticks, packed, c * WIDTH);
+                hashes[c] = KGram.chordHash(packed, c * WIDTH);
+            }
+            int next = (i + maxK) % n;
+            for (int j = 0; j < VOICES; j++) {
+                value[j] = chorale.getPitch(j, next) - chord[j];
+                value[j + VOICES] = chorale.getTicks(j, next);
+            }
+            int totalTop = chain(total, packed, hashes, maxK, totalChain);
+            int foldTop = chain(fold, packed, hashes, maxK, foldChain);
+
+            // Interpolate from the newest chord up, each order adds to the log-likelihood of every length from it
+            double p = uniform;
+            int seen = 0;
+            for (int o = 1; o <= maxK; o++) {
+                if (o == seen + 1 && o <= totalTop) {
+                    int e = totalChain[o];
+                    int f = o <= foldTop ? foldChain[o] : -1;
+                    long occurrences = total.total(e) - (f < 0 ? 0 : fold.total(f));
+                    if (occurrences > 0) {
+                        long count = count(total, e, value) - (f < 0 ? 0 : count(fold, f, value));
+                        int distinct = distinct(total, e, fold, f);
+                        p = (count + distinct * p) / (occurrences + distinct);
+                        seen = o;
+                    }
+                }
+                res.logLikelihood[o] += Math.log(p);
+                if (seen < o) res.unseen[o]++;
+            }
+            if (seen == 0) res.misses++;
+            res.chords++;
+        }
+        return res;
+    }
+
+    // Private helper method, fills chain with the entry of every seen suffix of the given number of packed chords by
+    // its order. Returns the longest order seen, 0 if not even the newest chord was.
+    private static int chain(ChordSnapshot model, int[] packed, int[] hashes, int chords, int[] chain) {
+        int hash = KGram.hash(packed, 0, chords);
+        int e = -1;
+        for (int oldest = 0; oldest < chords && e < 0; oldest++) {
+            e = model.find(packed, oldest * WIDTH, chords - oldest, hash);
+            hash -= hashes[oldest] * KGram.oldestFactor(chords - oldest);
+        }
+        if (e < 0) return 0;
+        int top = model.order(e);
+        for (; e >= 0; e = model.parent(e)) chain[model.order(e)] = e;
+        return top;
+    }
+
+    // Private helper method, returns the count of successor value after entry e of model, 0 if it never followed.
+    private static int count(ChordSnapshot model, int e, int[] value) {
+        for (int i = model.first(e); i < model.first(e + 1); i++) {
+            boolean equal = true;
+            for (int j = 0; j < value.length && equal; j++) equal = model.value(i, j) == value[j];
+            if (equal) return model.count(i);
+        }
+        return 0;
+    }
+
+    // Private helper method, returns the number of distinct successors after entry e of total that are left once the
+    // successors after entry f of fold are taken away, f being -1 if fold never saw the context. Every successor of f
+    // is one of e, and frozen models keep successors in order, see ContextTrie.sorted(), so both are walked once.
+    private static int distinct(ChordSnapshot total, int e, ChordSnapshot fold, int f) {
+        int res = total.first(e + 1) - total.first(e);
+        if (f < 0) return res;
+        int i = total.first(e);
+        for (int k = fold.first(f); k < fold.first(f + 1); k++) {
+            while (compare(total, i, fold, k) < 0) i++;
+            if (total.count(i) == fold.count(k)) res--;
+        }
+        return res;
+    }
+
+    // Private helper method, returns the number of distinct successors left in the counts of total once those of fold
+    // are taken away, those seen after some single chord in training on the other folds.
+    private static int trained(ChordSnapshot total, ChordSnapshot fold) {
+        boolean[] seen = new boolean[total.valueCount()];
+        int[] packed = new int[WIDTH];
+        int res = 0;
+        for (int e = 0; e < total.size(); e++) {
+            if (total.order(e) != 1) continue;
+            for (int j = 0; j < WIDTH; j++) packed[j] = total.chord(e, j);
+            int f = fold.find(packed, KGram.hash(packed));
+            int k = f < 0 ? 0 : fold.first(f);
+            int end = f < 0 ? 0 : fold.first(f + 1);
+            for (int i = total.first(e); i < total.first(e + 1); i++) {
+                while (k < end && compare(total, i, fold, k) > 0) k++;
+                int held = k < end && compare(total, i, fold, k) == 0 ? fold.count(k) : 0;
+                if (total.count(i) > held && !seen[total.valueId(i)]) {
+                    seen[total.valueId(i)] = true;
+                    res++;
+                }
+            }
+        }
+        return res;
+    }
+
+    // Private helper method, compares successor i of a with successor k of b int by int.
+    private static int compare(ChordSnapshot a, int i, ChordSnapshot b, int k) {
+        for (int j = 0; j < 2 * VOICES; j++) {
+            int c = Integer.compare(a.value(i, j), b.value(k, j));
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+
+    // Evaluates every K-Gram length up to the first command line argument on the whole corpus, taking the number of
+    // folds from the second argument, 10 if absent, and the number of worker threads from the third. The chorales are
+    // read from the KernCorpus named by the fourth, compiled there first if missing, instead of parsed if it is given.
+    public static void main(String[] args) throws IOException {
+        int maxK = Integer.parseInt(args[0]);
+        int folds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        if (maxK > 40) throw new IllegalArgumentException("Unsupported K-Gram length");
+
+        long start = System.nanoTime();
+        List<Kern> corpus = new ArrayList<>();
+        if (args.length > 3) {
+            corpus.addAll(KernCorpus.openOrCompile(Paths.get(args[3]), BachBot.chorales()).chorales());
+        } else {
+            for (Path p : BachBot.chorales()) corpus.add(new Kern(p.toString()));
+        }
+        List<Result> results = evaluate(corpus, maxK, folds, parallelism);
+        for (Result r : results) StdOut.println(r);
+        StdOut.printf("%d chorales, %d folds, %.1f s%n", corpus.size(), folds, (System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,227 @@
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// BachBotMetrics instruments one BachBot: time spent per phase, chorales ingested, model size, how often generation
+// finds its full K-Gram, backs off or misses, and how many octave corrections each generated chord needs. Counters are
+// LongAdders, so threads recording at once do not contend, and generation counts locally per piece and records once
+// at the end, so the metrics can stay on. Model sizes are read from the latest published model when asked for.
+//
+// Read them with snapshot(), or register() them as an MXBean to watch them over JMX.
+public class BachBotMetrics implements BachBotMetricsMXBean {
+
+    // Timed phases.
+    public enum Phase {
+        PARSE, // Reading a Kern file.
+        ADD, // Counting a chorale into the model.
+        FREEZE, // Compiling the model into a snapshot and its state graph.
+        GENERATE // Generating a piece, seed copy to last StateGraph step, without the time a stream's consumer takes.
+    }
+
+    private static final int MAX_CORRECTIONS = 4; // Most octave corrections per chord, one per voice.
+
+    private final BachBot bot; // Instrumented BachBot.
+    private final LongAdder[] calls = new LongAdder[Phase.values().length]; // Calls per phase.
+    private final LongAdder[] nanos = new LongAdder[Phase.values().length]; // Total time per phase.
+    private final LongAccumulator[] max = new LongAccumulator[Phase.values().length]; // Longest call per phase.
+    private final LongAdder chorales = new LongAdder();
+    private final LongAdder hits = new LongAdder(); // Lookups that found the full K-Gram.
+    private final LongAdder backoffs = new LongAdder(); // Lookups that found a shorter suffix only.
+    private final LongAdder misses = new LongAdder(); // Lookups that found nothing and fell back to the nearest K-Gram.
+    private final LongAdder[] corrections = new LongAdder[MAX_CORRECTIONS + 1]; // Chords per correction count.
+
+    // Constructor, metrics of bot.
+    public BachBotMetrics(BachBot bot) {
+        this.bot = bot;
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = new LongAdder();
+            nanos[i] = new LongAdder();
+            max[i] = new LongAccumulator(Math::max, 0);
+        }
+        for (int i = 0; i < corrections.length; i++) corrections[i] = new LongAdder();
+    }
+
+    // Records one call of phase that started at start, a System.nanoTime() reading.
+    public void record(Phase phase, long start) {
+        long elapsed = System.nanoTime() - start;
+        calls[phase.ordinal()].increment();
+        nanos[phase.ordinal()].add(elapsed);
+        max[phase.ordinal()].accumulate(elapsed);
+    }
+
+    // Records one chorale added to the model.
+    public void chorale() {
+        chorales.increment();
+    }
+
+    // Records the lookups of one generated piece: full K-Gram hits, backoffs to a shorter suffix, and misses.
+    public void lookups(long hit, long backoff, long miss) {
+        hits.add(hit);
+        backoffs.add(backoff);
+        misses.add(miss);
+    }
+
+    // Records the octave corrections of one generated piece, counts[i] chords needed i corrections.
+    public void corrections(int[] counts) {
+        for (int i = 0; i < counts.length; i++) corrections[i].add(counts[i]);
+    }
+
+    // Registers the metrics with the platform MBean server as bachbot:type=BachBot,name=name.
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("bachbot:type=BachBot,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Could not register metrics as " + name, e);
+        }
+    }
+
+    // Private helper method, the current totals of phase.
+    private TimerStats stats(Phase phase) {
+        int i = phase.ordinal();
+        return new TimerStats(calls[i].sum(), nanos[i].sum(), max[i].get());
+    }
+
+    @Override
+    public TimerStats getParse() {
+        return stats(Phase.PARSE);
+    }
+
+    @Override
+    public TimerStats getAdd() {
+        return stats(Phase.ADD);
+    }
+
+    @Override
+    public TimerStats getFreeze() {
+        return stats(Phase.FREEZE);
+    }
+
+    @Override
+    public TimerStats getGenerate() {
+        return stats(Phase.GENERATE);
+    }
+
+    @Override
+    public long getChoralesIngested() {
+        return chorales.sum();
+    }
+
+    @Override
+    public int getKGrams() {
+        return bot.chordST.size();
+    }
+
+    @Override
+    public int getSuccessors() {
+        return bot.chordST.successors();
+    }
+
+    @Override
+    public long getEstimatedHeapBytes() {
+        return bot.chordST.estimatedBytes();
+    }
+
+    @Override
+    public long getLookupHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getLookupBackoffs() {
+        return backoffs.sum();
+    }
+
+    @Override
+    public long getLookupMisses() {
+        return misses.sum();
+    }
+
+    // Chords generated with 0, 1, ... up to 4 octave corrections.
+    @Override
+    public long[] getRollCorrections() {
+        long[] res = new long[corrections.length];
+        for (int i = 0; i < res.length; i++) res[i] = corrections[i].sum();
+        return res;
+    }
+
+    // Returns every metric as of now. Counters are read one by one while recording may go on, so a snapshot taken
+    // during training or generation can be off by the calls in flight.
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    // Totals of one timed phase.
+    public static class TimerStats {
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        public TimerStats(long count, long totalNanos, long maxNanos) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return count + " in " + totalNanos / 1000000 + " ms (max " + maxNanos / 1000000 + " ms)";
+        }
+    }
+
+    // Plain copy of every metric at one point in time.
+    public static class Snapshot {
+        public final TimerStats parse;
+        public final TimerStats add;
+        public final TimerStats freeze;
+        public final TimerStats generate;
+        public final long chorales;
+        public final int kGrams;
+        public final int successors;
+        public final long estimatedHeapBytes;
+        public final long lookupHits;
+        public final long lookupBackoffs;
+        public final long lookupMisses;
+        public final long[] rollCorrections;
+
+        private Snapshot(BachBotMetrics m) {
+            parse = m.getParse();
+            add = m.getAdd();
+            freeze = m.getFreeze();
+            generate = m.getGenerate();
+            chorales = m.getChoralesIngested();
+            kGrams = m.getKGrams();
+            successors = m.getSuccessors();
+            estimatedHeapBytes = m.getEstimatedHeapBytes();
+            lookupHits = m.getLookupHits();
+            lookupBackoffs = m.getLookupBackoffs();
+            lookupMisses = m.getLookupMisses();
+            rollCorrections = m.getRollCorrections();
+        }
+
+        @Override
+        public String toString() {
+            return "parse " + parse + ", add " + add + ", freeze " + freeze + ", generate " + generate
+                    + "\nchorales " + chorales + ", K-Grams " + kGrams + ", successors " + successors + ", heap "
+                    + estimatedHeapBytes / (1024 * 1024) + " MB"
+                    + "\nlookups " + lookupHits + " hit, " + lookupBackoffs + " backed off, " + lookupMisses
+                    + " missed, roll corrections " + Arrays.toString(rollCorrections);
+        }
+    }
+}
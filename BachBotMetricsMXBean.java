@@ -0,0 +1,31 @@
+// BachBotMetricsMXBean is the JMX view of BachBotMetrics, see there for what is measured. Timers show up as composite
+// attributes with a count, total and maximum in nanoseconds. Parse times Kern files read for training, Generate times
+// whole pieces, which start from a SeedIndex entry and walk the StateGraph without parsing anything, up to but not
+// including where a streamed piece's chords are written out, and the lookup counters count the states each generated
+// chord is sampled from by their length.
+public interface BachBotMetricsMXBean {
+
+    BachBotMetrics.TimerStats getParse();
+
+    BachBotMetrics.TimerStats getAdd();
+
+    BachBotMetrics.TimerStats getFreeze();
+
+    BachBotMetrics.TimerStats getGenerate();
+
+    long getChoralesIngested();
+
+    int getKGrams();
+
+    int getSuccessors();
+
+    long getEstimatedHeapBytes();
+
+    long getLookupHits();
+
+    long getLookupBackoffs();
+
+    long getLookupMisses();
+
+    long[] getRollCorrections();
+}
@@ -0,0 +1,186 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// BachBotServer is a headless HTTP front end for generation. Models are loaded or trained once at startup, one per
+// K-Gram length, and shared by every request. Requests are:
+//
+//   GET /generate?k=3&length=100&ins=6&seed=42&tempo=80    a generated piece as a MIDI file, seed and tempo optional
+//                                   &phrases=true          start from any phrase rather than a chorale start
+//   GET /metrics                                          metrics of every model as text
+//
+// The HTTP dispatcher only parses a request and hands it to a fixed pool of generation workers fed from a bounded
+// queue. When the queue is full the request is answered with 503 and Retry-After at once, so load beyond what the
+// workers can take is pushed back to clients instead of piling up in memory.
+public class BachBotServer {
+
+    private static final int MAX_LENGTH = 100000; // Longest piece a request may ask for.
+
+    private final SortedMap<Integer, BachBot> models; // Model of each served K-Gram length.
+    private final ThreadPoolExecutor workers; // Generation workers.
+    private final HttpServer server;
+
+    // Constructor, serves models on port with the given number of generation workers and queued requests.
+    public BachBotServer(Map<Integer, BachBot> models, int port, int workers, int queue) throws IOException {
+        if (models.isEmpty()) throw new IllegalArgumentException("No models to serve");
+        this.models = new TreeMap<>(models);
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue), new ThreadPoolExecutor.AbortPolicy());
+        server = HttpServer.create(new InetSocketAddress(port), queue);
+        server.createContext("/generate", this::generate);
+        server.createContext("/metrics", this::metrics);
+    }
+
+    // Starts serving.
+    public void start() {
+        server.start();
+    }
+
+    // Returns the port the server listens on.
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    // Stops accepting requests, waits up to delay seconds for running ones, then stops the workers.
+    public void stop(int delay) {
+        server.stop(delay);
+        workers.shutdown();
+    }
+
+    // Private helper method, handles /generate. Validates the request on the dispatcher thread and queues the
+    // generation, which answers the exchange once the piece is written.
+    private void generate(HttpExchange exchange) throws IOException {
+        int k;
+        int length;
+        int ins;
+        double tempo;
+        boolean phrases;
+        Long seed;
+        try {
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            k = Integer.parseInt(query.getOrDefault("k", String.valueOf(models.firstKey())));
+            length = Integer.parseInt(query.getOrDefault("length", "100"));
+            ins = Integer.parseInt(query.getOrDefault("ins", "6"));
+            tempo = Double.parseDouble(query.getOrDefault("tempo", "80"));
+            phrases = Boolean.parseBoolean(query.getOrDefault("phrases", "false"));
+            seed = query.containsKey("seed") ? Long.valueOf(query.get("seed")) : null;
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "Malformed request: " + e.getMessage());
+            return;
+        }
+        BachBot bot = models.get(k);
+        if (bot == null) {
+            respond(exchange, 404, "No model for K-Gram length " + k + ", serving " + models.keySet());
+            return;
+        }
+        if (length < 0 || length > MAX_LENGTH || ins < 0 || ins > 127 || !(tempo > 0)) {
+            respond(exchange, 400, "Length, instrument or tempo out of range");
+            return;
+        }
+
+        try {
+            workers.execute(() -> {
+                try {
+                    SplittableRandom random = seed != null ? new SplittableRandom(seed) : new SplittableRandom();
+                    Kern piece = bot.generate(length, random, phrases);
+                    ByteArrayOutputStream midi = new ByteArrayOutputStream();
+                    piece.writeMidi(midi, ins, tempo);
+                    respond(exchange, 200, "audio/midi", midi.toByteArray());
+                } catch (IOException e) {
+                    exchange.close();
+                } catch (RuntimeException e) {
+                    try {
+                        respond(exchange, 500, "Generation failed: " + e.getMessage());
+                    } catch (IOException ignored) {
+                        exchange.close();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, "Too many requests queued");
+        }
+    }
+
+    // Private helper method, handles /metrics.
+    private void metrics(HttpExchange exchange) throws IOException {
+        StringBuilder res = new StringBuilder();
+        res.append("workers ").append(workers.getActiveCount()).append(" busy, ").append(workers.getQueue().size())
+                .append(" queued, ").append(workers.getCompletedTaskCount()).append(" completed\n");
+        for (Map.Entry<Integer, BachBot> model : models.entrySet()) {
+            res.append("\nk ").append(model.getKey()).append('\n').append(model.getValue().metrics().snapshot())
+                    .append('\n');
+        }
+        respond(exchange, 200, res.toString());
+    }
+
+    // Private helper method, decodes a query string into its parameters.
+    private static Map<String, String> query(String raw) throws UnsupportedEncodingException {
+        Map<String, String> res = new HashMap<>();
+        if (raw == null) return res;
+        for (String pair : raw.split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            res.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return res;
+    }
+
+    // Private helper method, answers with a text message.
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        respond(exchange, status, "text/plain; charset=utf-8", message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Private helper method, answers with body and closes the exchange.
+    private static void respond(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // Starts a server, takes from command line input the port, then the K-Gram lengths to serve separated by commas.
+    // An optional third argument names a directory of model files, each loaded if it exists and written after
+    // training otherwise, and optional fourth and fifth arguments give the number of workers and queued requests.
+    public static void main(String[] args) throws IOException {
+        int port = Integer.parseInt(args[0]);
+        Path dir = args.length > 2 ? Paths.get(args[2]) : null;
+        int workers = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        int queue = args.length > 4 ? Integer.parseInt(args[4]) : workers * 16;
+
+        Map<Integer, BachBot> models = new HashMap<>();
+        for (String k : args[1].split(",")) {
+            int kLen = Integer.parseInt(k.trim());
+            if (kLen < 1 || kLen > 40) throw new IllegalArgumentException("Unsupported K-Gram length");
+            BachBot bot = BachBot.loadOrTrain(kLen, dir == null ? null : dir.resolve("bachbot-k" + kLen + ".bin"));
+            bot.publish();
+            bot.metrics().register("k" + kLen);
+            models.put(kLen, bot);
+        }
+
+        BachBotServer server = new BachBotServer(models, port, workers, queue);
+        server.start();
+        StdOut.println("Serving K-Gram lengths " + models.keySet() + " on port " + server.port());
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// ChoraleWatcher trains a live BachBot on chorales as they appear in a directory. A daemon thread waits for .krn files
+// to be created or written, adds each one once the directory has been quiet for a moment, and publishes the model
+// after every batch, so generation picks up new chorales without a restart or a full retrain. Files already in the
+// directory when watching starts are left alone. Chorales are best moved into the directory once complete, a file
+// that does not parse is skipped until it is written again.
+public class ChoraleWatcher implements Closeable {
+
+    private static final long QUIET_MS = 250; // Time without events before pending files are read.
+
+    private final BachBot bot; // Model trained on new chorales.
+    private final Path dir; // Watched directory.
+    private final WatchService watcher;
+    private final Thread thread;
+    private final Set<Path> added = new HashSet<>(); // Files already trained on, each file is only added once.
+
+    // Constructor, starts watching dir for chorales to add to bot.
+    public ChoraleWatcher(BachBot bot, Path dir) throws IOException {
+        this.bot = bot;
+        this.dir = dir;
+        watcher = FileSystems.getDefault().newWatchService();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        thread = new Thread(this::run, "chorale-watcher " + dir);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Private helper method, the watching loop. Events are collected until QUIET_MS pass without one, then the
+    // pending files are added.
+    private void run() {
+        Set<Path> pending = new LinkedHashSet<>();
+        try {
+            while (true) {
+                WatchKey key = pending.isEmpty() ? watcher.take() : watcher.poll(QUIET_MS, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    ingest(pending);
+                    pending.clear();
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) continue;
+                    Path file = dir.resolve((Path) event.context());
+                    if (file.toString().endsWith(".krn") && !added.contains(file)) pending.add(file);
+                }
+                if (!key.reset()) return;
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    // Private helper method, adds every file that parses and publishes the model if any were added.
+    private void ingest(Set<Path> files) {
+        boolean changed = false;
+        for (Path file : files) {
+            Kern kern;
+            long start = System.nanoTime();
+            try {
+                kern = new Kern(file.toString());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Skipping " + file + ": " + e.getMessage());
+                continue;
+            }
+            bot.metrics().record(BachBotMetrics.Phase.PARSE, start);
+            bot.add(kern);
+            added.add(file);
+            changed = true;
+        }
+        if (changed) bot.publish();
+    }
+
+    // Stops watching, chorales already added stay in the model.
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        thread.interrupt();
+    }
+
+    // Tests class methods, command line input K-Gram length and directory. Trains on the first chorale, then
+    // generates from it every few seconds while new chorales are copied into the directory.
+    public static void main(String[] args) throws Exception {
+        BachBot bot = new BachBot(Integer.parseInt(args[0]));
+        bot.add(new Kern("chor001.krn"));
+        bot.publish();
+        ChoraleWatcher watcher = new ChoraleWatcher(bot, Paths.get(args[1]));
+        try {
+            for (int i = 0; i < 10; i++) {
+                bot.generate(50, "chor001.krn");
+                StdOut.println("K-Grams " + bot.chordST.size());
+                Thread.sleep(3000);
+            }
+        } finally {
+            watcher.close();
+        }
+    }
+}
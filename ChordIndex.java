@@ -0,0 +1,115 @@
+import java.util.Arrays;
+
+// ChordIndex finds the known chord closest to a chord the model has never seen. It is a vantage-point tree over the
+// single chord K-Grams of a ChordSnapshot, compared by their packed form: twelve times the summed difference of the
+// intervals between voices plus the summed difference of the durations in ticks, so a semitone weighs as much as a
+// sixteenth note. That is a metric, so a subtree is skipped whenever the triangle inequality rules it out. A search
+// looks at no more than a fixed number of chords, nearest side first, and returns the closest one found by then.
+//
+// The tree is laid out in place over one array of entries: the node over entries[lo, hi) has its vantage point at
+// lo, the entries within radius[lo] of it in [lo + 1, mid) and the rest in [mid, hi), mid being the middle.
+public final class ChordIndex {
+
+    private static final int WIDTH = KGram.CHORD_WIDTH;
+    private static final int INTERVALS = 3; // Packed ints of a chord that are intervals, the rest are durations.
+    private static final int SEMITONE = 12; // Weight of a semitone of interval, in ticks of duration.
+    private static final int MAX_VISITS = 256; // Most chords a search computes the distance to.
+    private static final long CAP = 1 << 16; // Largest difference counted per packed int, rests make huge intervals.
+
+    private final int[] entries; // Snapshot entry of each chord, in tree order.
+    private final int[] chords; // Packed chord of each entry, WIDTH ints each, in tree order.
+    private final int[] radius; // Distance splitting the children of the node at each position.
+
+    // Builds the index over every single chord K-Gram of snapshot.
+    public ChordIndex(ChordSnapshot snapshot) {
+        int n = 0;
+        for (int e = 0; e < snapshot.size(); e++) if (snapshot.order(e) == 1) n++;
+        entries = new int[n];
+        chords = new int[n * WIDTH];
+        radius = new int[n];
+        n = 0;
+        for (int e = 0; e < snapshot.size(); e++) {
+            if (snapshot.order(e) != 1) continue;
+            entries[n] = e;
+            for (int j = 0; j < WIDTH; j++) chords[n * WIDTH + j] = snapshot.chord(e, j);
+            n++;
+        }
+        build(0, n, new long[n]);
+    }
+
+    // Private helper method, distance between the packed chord at a in x and the one at b in y. Capping each
+    // difference keeps it a metric.
+    private static int distance(int[] x, int a, int[] y, int b) {
+        long res = 0;
+        for (int j = 0; j < WIDTH; j++) {
+            long diff = Math.min(Math.abs((long) x[a + j] - y[b + j]), CAP);
+            res += j < INTERVALS ? SEMITONE * diff : diff;
+        }
+        return (int) res;
+    }
+
+    // Private helper method, builds the node over [lo, hi) with its vantage point at lo: sorts the rest by distance
+    // to it, keyed in scratch as distance and position, and splits them at the middle.
+    private void build(int lo, int hi, long[] scratch) {
+        if (hi - lo < 2) return;
+        for (int i = lo + 1; i < hi; i++) {
+            scratch[i] = (long) distance(chords, lo * WIDTH, chords, i * WIDTH) << 32 | i;
+        }
+        Arrays.sort(scratch, lo + 1, hi);
+
+        // Permute entries and chords into sorted order
+        int[] e = new int[hi - lo - 1];
+        int[] c = new int[(hi - lo - 1) * WIDTH];
+        for (int i = lo + 1; i < hi; i++) {
+            int from = (int) scratch[i];
+            e[i - lo - 1] = entries[from];
+            System.arraycopy(chords, from * WIDTH, c, (i - lo - 1) * WIDTH, WIDTH);
+        }
+        System.arraycopy(e, 0, entries, lo + 1, e.length);
+        System.arraycopy(c, 0, chords, (lo + 1) * WIDTH, c.length);
+
+        int mid = (lo + 1 + hi) >>> 1;
+        radius[lo] = (int) (scratch[mid] >>> 32);
+        build(lo + 1, mid, scratch);
+        build(mid, hi, scratch);
+    }
+
+    // Returns the number of chords indexed.
+    public int size() {
+        return entries.length;
+    }
+
+    // Returns the snapshot entry of the indexed chord closest to the packed chord at off in packed, searching at most
+    // MAX_VISITS chords, -1 if the index is empty.
+    public int nearest(int[] packed, int off) {
+        // best[0] is the closest distance so far, best[1] its position, best[2] the distances computed. Distances
+        // stay far below Integer.MAX_VALUE / 2, so the pruning sums do not overflow.
+        int[] best = {Integer.MAX_VALUE / 2, -1, 0};
+        search(0, entries.length, packed, off, best);
+        return best[1] < 0 ? -1 : entries[best[1]];
+    }
+
+    // Private helper method, searches the node over [lo, hi), visiting the side the chord falls in first.
+    private void search(int lo, int hi, int[] packed, int off, int[] best) {
+        if (lo >= hi || best[2] >= MAX_VISITS) return;
+        int d = distance(packed, off, chords, lo * WIDTH);
+        best[2]++;
+        if (d < best[0]) {
+            best[0] = d;
+            best[1] = lo;
+        }
+        int mid = (lo + 1 + hi) >>> 1;
+        if (d < radius[lo]) {
+            search(lo + 1, mid, packed, off, best);
+            if (d + best[0] >= radius[lo]) search(mid, hi, packed, off, best);
+        } else {
+            search(mid, hi, packed, off, best);
+            if (d - best[0] <= radius[lo]) search(lo + 1, mid, packed, off, best);
+        }
+    }
+
+    // Returns the estimated heap taken by the index in bytes.
+    public long estimatedBytes() {
+        return (entries.length + chords.length + radius.length) * 4L;
+    }
+}
@@ -0,0 +1,571 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+// ChordSnapshot is the read-only, flat form of a trained newChordST. Every section is a column of ints: an
+// open-addressing slot table, the K-Grams, successor ranges per K-Gram, the successors with their counts, and a Vose
+// alias table per K-Gram for constant time sampling. Columns are IntBuffers, either wrapping heap arrays when built
+// from a model or viewing a memory-mapped file when loaded, in which case pages are read in on first use.
+//
+// The K-Grams are the nodes of a ContextTrie: each entry stores the id of its oldest chord and a link to the entry of
+// one order lower without that chord. Chords and successors are stored once each in dictionary sections and
+// referenced by id. Columns whose values are small are packed into the narrowest of 8, 16 or 32 bits that holds the
+// largest: the counts and totals, the alias thresholds, which never exceed their K-Gram's total, and the alias
+// fallbacks, which never reach its number of successors.
+//
+// File format, all ints big-endian:
+//   header   MAGIC, VERSION, kLen, CHORD_WIDTH, VALUE_WIDTH, ticks per beat, keys, successors, slots, chords, values,
+//            count bits, total bits, alias bits
+//   slots    [slots]             entry index + 1, 0 when empty
+//   hashes   [keys]              KGram hash of each entry
+//   orders   [keys]              number of chords of each entry
+//   chords   [keys]              oldest chord id of each entry
+//   parents  [keys]              entry without the oldest chord, -1 for single chords
+//   start    [keys + 1]          first successor of each entry
+//   totals   [keys, packed]      total occurrences of each entry, at total bits
+//   values   [successors]        successor id of each successor
+//   counts   [successors, packed]    occurrences of each successor, at count bits
+//   prob     [successors, packed]    alias acceptance thresholds in [0, total], at total bits
+//   alias    [successors, packed]    alias fallback, relative to the entry's first successor, at alias bits
+// A packed column of n values at b bits takes n * b / 32 ints rounded up, each value in the lowest bits first.
+//   chordTab [chords * 7]        packed chord of each chord id
+//   valueTab [values * 8]        packed successor of each successor id
+public class ChordSnapshot {
+
+    private static final int MAGIC = 0x42414348; // "BACH"
+    private static final int VERSION = 5;
+    private static final int HEADER = 14; // Ints in the header.
+    private static final int WIDTH = KGram.CHORD_WIDTH;
+    private static final int VALUE_WIDTH = ContextTrie.VALUE_WIDTH;
+
+    private final int kLen; // Longest K-Gram length.
+    private final int ticks; // Ticks per beat of the packed durations.
+    private final int keys; // Number of K-Grams.
+    private final int successors; // Number of successors over all K-Grams.
+    private final int countBits; // Bits per packed successor count.
+    private final int totalBits; // Bits per packed total and alias threshold.
+    private final int aliasBits; // Bits per packed alias fallback.
+
+    private final IntBuffer slots;
+    private final IntBuffer hashes;
+    private final IntBuffer orders;
+    private final IntBuffer chords;
+    private final IntBuffer parents;
+    private final IntBuffer start;
+    private final IntBuffer totals;
+    private final IntBuffer values;
+    private final IntBuffer counts;
+    private final IntBuffer prob;
+    private final IntBuffer alias;
+    private final IntBuffer chordTab;
+    private final IntBuffer valueTab;
+
+    private final newChordST.StupidAssTuple[] decoded; // Successor ids decoded on first use.
+
+    // Private constructor, takes an int buffer positioned at the header.
+    private ChordSnapshot(IntBuffer buf) {
+        if (buf.get() != MAGIC) throw new IllegalArgumentException("Not a BachBot model");
+        if (buf.get() != VERSION) throw new IllegalArgumentException("Unsupported model version");
+        kLen = buf.get();
+        if (buf.get() != WIDTH || buf.get() != VALUE_WIDTH) {
+            throw new IllegalArgumentException("Incompatible model layout");
+        }
+        ticks = buf.get();
+        keys = buf.get();
+        successors = buf.get();
+        int slotCount = buf.get();
+        int chordCount = buf.get();
+        int valueCount = buf.get();
+        countBits = width(buf.get());
+        totalBits = width(buf.get());
+        aliasBits = width(buf.get());
+
+        slots = section(buf, slotCount);
+        hashes = section(buf, keys);
+        orders = section(buf, keys);
+        chords = section(buf, keys);
+        parents = section(buf, keys);
+        start = section(buf, keys + 1);
+        totals = section(buf, words(keys, totalBits));
+        values = section(buf, successors);
+        counts = section(buf, words(successors, countBits));
+        prob = section(buf, words(successors, totalBits));
+        alias = section(buf, words(successors, aliasBits));
+        chordTab = section(buf, (long) chordCount * WIDTH);
+        valueTab = section(buf, (long) valueCount * VALUE_WIDTH);
+        decoded = new newChordST.StupidAssTuple[valueCount];
+    }
+
+    // Private helper method, slices the next len ints off buf.
+    private static IntBuffer section(IntBuffer buf, long len) {
+        if (len > buf.remaining()) throw new IllegalArgumentException("Truncated model");
+        int end = buf.position() + (int) len;
+        IntBuffer res = buf.duplicate();
+        res.limit(end);
+        buf.position(end);
+        return res.slice();
+    }
+
+    // Private helper method, ints taken by n values packed at bits each.
+    private static int words(int n, int bits) {
+        return (int) (((long) n * bits + 31) / 32);
+    }
+
+    // Private helper method, the narrowest packed width that holds max.
+    private static int bits(int max) {
+        return max <= 0xFF ? 8 : max <= 0xFFFF ? 16 : 32;
+    }
+
+    // Private helper method, returns bits if it is a packed width read from a file.
+    private static int width(int bits) {
+        if (bits != 8 && bits != 16 && bits != 32) throw new IllegalArgumentException("Bad column width");
+        return bits;
+    }
+
+    // Private helper method, packs the first n values of src at bits each into data from off, returns the ints taken.
+    private static int pack(int[] src, int n, int bits, int[] data, int off) {
+        for (int i = 0; i < n; i++) {
+            long bit = (long) i * bits;
+            data[off + (int) (bit >>> 5)] |= src[i] << (bit & 31);
+        }
+        return words(n, bits);
+    }
+
+    // Private helper method, value i of a column packed at bits each.
+    private static int unpack(IntBuffer column, int bits, int i) {
+        if (bits == 32) return column.get(i);
+        long bit = (long) i * bits;
+        return (column.get((int) (bit >>> 5)) >>> (bit & 31)) & ((1 << bits) - 1);
+    }
+
+    // Private helper method, slots of the open-addressing table for the given number of K-Grams.
+    private static int slotCount(int keys) {
+        return Integer.highestOneBit(Math.max(keys, 1)) * 4;
+    }
+
+    // Private helper method, ints taken by a snapshot of the given sizes and packed widths.
+    private static long length(int keys, int successors, int chords, int values, int countBits, int totalBits,
+                               int aliasBits) {
+        return HEADER + (long) slotCount(keys) + keys * 5L + 1 + words(keys, totalBits) + successors
+                + words(successors, countBits) + words(successors, totalBits) + words(successors, aliasBits)
+                + (long) chords * WIDTH + (long) values * VALUE_WIDTH;
+    }
+
+    // Returns the estimated heap taken by a snapshot with the given numbers of K-Grams, successors, distinct chords
+    // and distinct successors, largest count, largest total and most successors of one K-Gram, in bytes. Used to plan
+    // compaction before building anything.
+    public static long estimatedBytes(int keys, int successors, int chords, int values, int maxCount, int maxTotal,
+                                      int maxSuccessors) {
+        return length(keys, successors, chords, values, bits(maxCount), bits(maxTotal),
+                bits(Math.max(maxSuccessors - 1, 0))) * 4 + values * 4L;
+    }
+
+    // Builds a snapshot of the contexts and successor counts in trie, the root is left out and node n becomes entry
+    // n - 1. Successors of each entry keep the trie's pair order.
+    public static ChordSnapshot of(int kLen, int ticks, ContextTrie trie) {
+        int keys = trie.nodes() - 1;
+        int successors = trie.pairs();
+        TupleInterner chordIds = trie.chords();
+        TupleInterner valueIds = trie.values();
+
+        // Group pairs by entry, keeping their order, and size the packed columns
+        int[] first = new int[keys + 1];
+        int[] totals = new int[keys];
+        int maxCount = 0;
+        for (int p = 0; p < successors; p++) {
+            first[trie.pairNode(p)]++;
+            totals[trie.pairNode(p) - 1] += trie.pairCount(p);
+            maxCount = Math.max(maxCount, trie.pairCount(p));
+        }
+        int maxTotal = 0;
+        int maxSize = 0;
+        for (int e = 0; e < keys; e++) {
+            maxTotal = Math.max(maxTotal, totals[e]);
+            maxSize = Math.max(maxSize, first[e + 1]);
+            first[e + 1] += first[e];
+        }
+        int countBits = bits(maxCount);
+        int totalBits = bits(maxTotal);
+        int aliasBits = bits(Math.max(maxSize - 1, 0));
+        int slotCount = slotCount(keys);
+        long length = length(keys, successors, chordIds.size(), valueIds.size(), countBits, totalBits, aliasBits);
+        if (length > Integer.MAX_VALUE) throw new IllegalArgumentException("Model too large for a snapshot");
+        int[] data = new int[(int) length];
+        IntBuffer buf = IntBuffer.wrap(data);
+        buf.put(new int[]{MAGIC, VERSION, kLen, WIDTH, VALUE_WIDTH, ticks, keys, successors, slotCount,
+                chordIds.size(), valueIds.size(), countBits, totalBits, aliasBits});
+
+        // Hash of each entry from its oldest chord and its parent's hash
+        int[] chordHashes = new int[chordIds.size()];
+        int[] packed = new int[WIDTH];
+        for (int c = 0; c < chordIds.size(); c++) {
+            for (int j = 0; j < WIDTH; j++) packed[j] = chordIds.get(c, j);
+            chordHashes[c] = KGram.chordHash(packed, 0);
+        }
+        int[] factors = new int[kLen + 2];
+        for (int order = 1; order < factors.length; order++) factors[order] = KGram.oldestFactor(order);
+        int[] hash = new int[keys + 1];
+        for (int n = 1; n <= keys; n++) {
+            hash[n] = chordHashes[trie.chord(n)] * factors[trie.order(n)] + hash[trie.parent(n)];
+        }
+
+        int[] slots = new int[slotCount];
+        for (int e = 0; e < keys; e++) {
+            int s = KGram.mix(hash[e + 1]) & (slotCount - 1);
+            while (slots[s] != 0) s = (s + 1) & (slotCount - 1);
+            slots[s] = e + 1;
+        }
+        buf.put(slots);
+        buf.put(hash, 1, keys);
+        for (int n = 1; n <= keys; n++) buf.put(trie.order(n));
+        for (int n = 1; n <= keys; n++) buf.put(trie.chord(n));
+        for (int n = 1; n <= keys; n++) buf.put(trie.parent(n) - 1);
+
+        int[] order = new int[successors];
+        int[] fill = Arrays.copyOf(first, keys);
+        for (int p = 0; p < successors; p++) order[fill[trie.pairNode(p) - 1]++] = p;
+
+        buf.put(first);
+        buf.position(buf.position() + pack(totals, keys, totalBits, data, buf.position()));
+        for (int i = 0; i < successors; i++) buf.put(trie.pairValue(order[i]));
+        int[] counts = new int[successors];
+        for (int i = 0; i < successors; i++) counts[i] = trie.pairCount(order[i]);
+        buf.position(buf.position() + pack(counts, successors, countBits, data, buf.position()));
+
+        // Alias tables go after the counts, prob and alias share one pass per K-Gram
+        int[] prob = new int[successors];
+        int[] alias = new int[successors];
+        for (int e = 0; e < keys; e++) alias(counts, first[e], first[e + 1] - first[e], totals[e], prob, alias);
+        buf.position(buf.position() + pack(prob, successors, totalBits, data, buf.position()));
+        buf.position(buf.position() + pack(alias, successors, aliasBits, data, buf.position()));
+
+        for (int c = 0; c < chordIds.size(); c++) {
+            for (int j = 0; j < WIDTH; j++) buf.put(chordIds.get(c, j));
+        }
+        for (int v = 0; v < valueIds.size(); v++) {
+            for (int j = 0; j < VALUE_WIDTH; j++) buf.put(valueIds.get(v, j));
+        }
+
+        buf.rewind();
+        return new ChordSnapshot(buf);
+    }
+
+    // Private helper method, compiles size counts at off in counts into a Vose alias table written to prob and alias
+    // at the same offset. Weights are scaled by size so every threshold is an exact integer and the sampled
+    // distribution matches the counts exactly.
+    private static void alias(int[] counts, int off, int size, int total, int[] prob, int[] alias) {
+        long[] weight = new long[size];
+        int[] small = new int[size];
+        int[] large = new int[size];
+        int nSmall = 0;
+        int nLarge = 0;
+        for (int i = 0; i < size; i++) {
+            weight[i] = (long) counts[off + i] * size;
+            if (weight[i] < total) small[nSmall++] = i;
+            else large[nLarge++] = i;
+        }
+
+        while (nSmall > 0 && nLarge > 0) {
+            int l = small[--nSmall];
+            int g = large[--nLarge];
+            prob[off + l] = (int) weight[l];
+            alias[off + l] = g;
+            weight[g] -= total - weight[l];
+            if (weight[g] < total) small[nSmall++] = g;
+            else large[nLarge++] = g;
+        }
+        while (nLarge > 0) {
+            int g = large[--nLarge];
+            prob[off + g] = total;
+            alias[off + g] = g;
+        }
+        while (nSmall > 0) {
+            int l = small[--nSmall];
+            prob[off + l] = total;
+            alias[off + l] = l;
+        }
+    }
+
+    // Writes the snapshot to path in the binary format above.
+    public void save(Path path) throws IOException {
+        try (OutputStream os = Files.newOutputStream(path);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16))) {
+            int[] header = {MAGIC, VERSION, kLen, WIDTH, VALUE_WIDTH, ticks, keys, successors, slots.limit(),
+                    chordTab.limit() / WIDTH, valueTab.limit() / VALUE_WIDTH, countBits, totalBits, aliasBits};
+            for (int h : header) out.writeInt(h);
+            IntBuffer[] sections = {slots, hashes, orders, chords, parents, start, totals, values, counts, prob, alias,
+                    chordTab, valueTab};
+            for (IntBuffer section : sections) {
+                for (int i = 0; i < section.limit(); i++) out.writeInt(section.get(i));
+            }
+        }
+    }
+
+    // Maps the model file at path. Nothing beyond the header is read until a lookup touches it.
+    public static ChordSnapshot load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IllegalArgumentException("Model file too large");
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ChordSnapshot(map.asIntBuffer());
+        }
+    }
+
+    // Returns the longest K-Gram length.
+    public int kLen() {
+        return kLen;
+    }
+
+    // Returns the ticks per beat of the packed durations.
+    public int ticks() {
+        return ticks;
+    }
+
+    // Returns the number of K-Grams.
+    public int size() {
+        return keys;
+    }
+
+    // Returns the number of successors over all K-Grams.
+    public int successors() {
+        return successors;
+    }
+
+    // Returns the estimated heap taken by the snapshot in bytes. A memory-mapped snapshot only counts its decoded
+    // successor cache, its sections are outside the heap.
+    public long estimatedBytes() {
+        long bytes = decoded.length * 4L;
+        if (slots.hasArray()) bytes += slots.array().length * 4L;
+        return bytes;
+    }
+
+    // Returns the index of the packed K-Gram, -1 if absent.
+    public int find(int[] packed, int hash) {
+        return find(packed, 0, packed.length / WIDTH, hash);
+    }
+
+    // Returns the index of the given number of packed chords stored at off in packed, -1 if absent. hash must be
+    // their KGram hash.
+    public int find(int[] packed, int off, int length, int hash) {
+        int mask = slots.limit() - 1;
+        for (int s = KGram.mix(hash) & mask; slots.get(s) != 0; s = (s + 1) & mask) {
+            int e = slots.get(s) - 1;
+            if (hashes.get(e) == hash && orders.get(e) == length && matches(e, packed, off)) return e;
+        }
+        return -1;
+    }
+
+    // Private helper method, compares the e-th K-Gram to the packed K-Gram of the same length at off, one chord at a
+    // time down its chain of suffixes.
+    private boolean matches(int e, int[] packed, int off) {
+        for (; e >= 0; e = parents.get(e), off += WIDTH) {
+            int base = chords.get(e) * WIDTH;
+            for (int i = 0; i < WIDTH; i++) {
+                if (chordTab.get(base + i) != packed[off + i]) return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the number of chords of entry e.
+    public int order(int e) {
+        return orders.get(e);
+    }
+
+    // Returns the entry of e without its oldest chord, -1 for single chords.
+    public int parent(int e) {
+        return parents.get(e);
+    }
+
+    // Returns packed value j of the oldest chord of entry e.
+    public int chord(int e, int j) {
+        return chordTab.get(chords.get(e) * WIDTH + j);
+    }
+
+    // Returns the index of the first successor of entry e, successors of e end at first(e + 1).
+    public int first(int e) {
+        return start.get(e);
+    }
+
+    // Returns the total occurrences of entry e.
+    public int total(int e) {
+        return unpack(totals, totalBits, e);
+    }
+
+    // Returns the bits each successor count is packed into, 8, 16 or 32.
+    public int countBits() {
+        return countBits;
+    }
+
+    // Returns the bits each total and alias threshold is packed into, 8, 16 or 32.
+    public int totalBits() {
+        return totalBits;
+    }
+
+    // Returns the bits each alias fallback is packed into, 8, 16 or 32.
+    public int aliasBits() {
+        return aliasBits;
+    }
+
+    // Returns the count of successor i.
+    public int count(int i) {
+        return unpack(counts, countBits, i);
+    }
+
+    // Returns the packed value j of successor i.
+    public int value(int i, int j) {
+        return valueTab.get(values.get(i) * VALUE_WIDTH + j);
+    }
+
+    // Returns the id of successor i, successors with equal pitch changes and durations share one.
+    public int valueId(int i) {
+        return values.get(i);
+    }
+
+    // Returns the number of distinct successors.
+    public int valueCount() {
+        return decoded.length;
+    }
+
+    // Returns the alias acceptance threshold of successor column i, in [0, total] of its entry.
+    public int prob(int i) {
+        return unpack(prob, totalBits, i);
+    }
+
+    // Returns the alias fallback of successor column i, relative to the first successor of its entry.
+    public int alias(int i) {
+        return unpack(alias, aliasBits, i);
+    }
+
+    // Returns the successor of entry e picked by the alias table, r must be in [0, size * total) where size is the
+    // number of successors of e. The column is r / total and the acceptance draw is r % total, so a single random
+    // value is enough.
+    public int sample(int e, long r) {
+        int total = total(e);
+        int base = start.get(e);
+        int column = base + (int) (r / total);
+        return (int) (r % total) < prob(column) ? column : base + alias(column);
+    }
+
+    // Returns successor i decoded to pitch changes and durations. Tuples are decoded once per distinct successor and
+    // shared.
+    public newChordST.StupidAssTuple decoded(int i) {
+        newChordST.StupidAssTuple res = decoded[values.get(i)];
+        if (res == null) {
+            int voices = VALUE_WIDTH / 2;
+            int[] pitch = new int[voices];
+            int[] time = new int[voices];
+            for (int j = 0; j < voices; j++) {
+                pitch[j] = value(i, j);
+                time[j] = value(i, j + voices);
+            }
+            res = new newChordST.StupidAssTuple(pitch, time);
+            decoded[values.get(i)] = res;
+        }
+        return res;
+    }
+
+    // Checks a saved and reloaded snapshot against the trie it was built from, once for each count width: every
+    // context is found with its total, every successor with its count, and the alias table of every context gives
+    // each successor exactly as many draws as its count.
+    public static void main(String[] args) throws IOException {
+        int[][] widths = {{8, 200}, {16, 60000}, {32, 100000}}; // Count width, largest count to store.
+        Path file = Files.createTempFile("snapshot", ".model");
+        try {
+            for (int[] width : widths) {
+                ContextTrie trie = randomTrie(3, width[1], new SplittableRandom(width[0]));
+                ChordSnapshot live = of(3, Kern.TICKS, trie);
+                live.save(file);
+                ChordSnapshot loaded = load(file);
+                for (ChordSnapshot snapshot : new ChordSnapshot[]{live, loaded}) {
+                    SelfCheck.that(snapshot.countBits() == width[0], "count width " + snapshot.countBits());
+                    check(trie, snapshot);
+                }
+                StdOut.println(width[0] + "-bit counts, " + loaded.totalBits() + "-bit totals and "
+                        + loaded.aliasBits() + "-bit aliases: " + loaded.size() + " K-Grams and "
+                        + loaded.successors() + " successors round-trip");
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // Private helper method, a trie of K-Grams of up to kLen chords over a few distinct chords and successors, with
+    // random counts the largest of which is maxCount.
+    private static ContextTrie randomTrie(int kLen, int maxCount, SplittableRandom random) {
+        ContextTrie res = new ContextTrie();
+        int[] packed = new int[kLen * WIDTH];
+        int[] value = new int[VALUE_WIDTH];
+        for (int n = 0; n < 2000; n++) {
+            for (int i = 0; i < packed.length; i++) packed[i] = random.nextInt(i % WIDTH < 3 ? 3 : 2) * 12;
+            for (int j = 0; j < VALUE_WIDTH; j++) value[j] = random.nextInt(j < VALUE_WIDTH / 2 ? 3 : 2);
+            res.add(packed, 0, kLen, value, 0, n == 0 ? maxCount : 1 + random.nextInt(maxCount / 100));
+        }
+        return res;
+    }
+
+    // Private helper method, throws if snapshot does not hold exactly the contexts and counts of trie.
+    private static void check(ContextTrie trie, ChordSnapshot snapshot) {
+        SelfCheck.that(snapshot.size() == trie.nodes() - 1 && snapshot.successors() == trie.pairs(), "sizes");
+        int[] entry = new int[trie.nodes()];
+        int[] totals = trie.totals();
+        for (int n = 1; n < trie.nodes(); n++) {
+            int[] packed = new int[trie.order(n) * WIDTH];
+            int off = 0;
+            for (int c = n; c > 0; c = trie.parent(c)) {
+                for (int j = 0; j < WIDTH; j++) packed[off++] = trie.chords().get(trie.chord(c), j);
+            }
+            int e = snapshot.find(packed, KGram.hash(packed));
+            SelfCheck.that(e >= 0 && snapshot.order(e) == trie.order(n), "find of K-Gram " + n);
+            SelfCheck.that(snapshot.total(e) == totals[n], "total of K-Gram " + n);
+            entry[n] = e;
+        }
+        int[] absent = new int[WIDTH];
+        Arrays.fill(absent, 1); // Chords of randomTrie() are multiples of 12.
+        SelfCheck.that(snapshot.find(absent, KGram.hash(absent)) == -1, "find of an absent K-Gram");
+
+        // Every pair of the trie must be a successor of its entry, and the numbers of both match above
+        for (int p = 0; p < trie.pairs(); p++) {
+            int e = entry[trie.pairNode(p)];
+            int found = -1;
+            for (int i = snapshot.first(e); i < snapshot.first(e + 1) && found < 0; i++) {
+                boolean equal = true;
+                for (int j = 0; j < VALUE_WIDTH; j++) {
+                    equal &= snapshot.value(i, j) == trie.values().get(trie.pairValue(p), j);
+                }
+                if (equal) found = i;
+            }
+            SelfCheck.that(found >= 0 && snapshot.count(found) == trie.pairCount(p), "count of pair " + p);
+        }
+
+        // Column c of an entry with n successors draws c for prob(c) of its total values of r and its alias for
+        // the rest, so successor i must be drawn n * count(i) times over all r
+        for (int e = 0; e < snapshot.size(); e++) {
+            int base = snapshot.first(e);
+            int n = snapshot.first(e + 1) - base;
+            int total = snapshot.total(e);
+            long[] draws = new long[n];
+            for (int c = 0; c < n; c++) {
+                int prob = snapshot.prob(base + c);
+                draws[c] += prob;
+                draws[snapshot.alias(base + c)] += total - prob;
+                long r = (long) c * total + prob;
+                if (prob > 0) SelfCheck.that(snapshot.sample(e, r - 1) == base + c, "sample of K-Gram " + e);
+                if (prob < total) {
+                    SelfCheck.that(snapshot.sample(e, r) == base + snapshot.alias(base + c), "sample of K-Gram " + e);
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                SelfCheck.that(draws[i] == (long) n * snapshot.count(base + i), "draws of successor " + (base + i));
+            }
+        }
+    }
+}
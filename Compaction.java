@@ -0,0 +1,53 @@
+import java.util.Arrays;
+
+// Compaction reports what newChordST.compact() removed from a model to fit it into a memory budget: the smallest
+// context count that was kept, how many K-Grams and successors were dropped, per K-Gram length, and the estimated
+// snapshot size before and after. Occurrences cut with the successors beyond maxSuccessors are counted only for the
+// contexts that were kept, as the sum of the counts each of them dropped; a dropped context loses nothing, its
+// counts live on in its suffix.
+public class Compaction {
+
+    public final long budgetBytes; // Memory target of the snapshot.
+    public final int minCount; // Contexts of two chords or more seen fewer times were dropped.
+    public final int maxSuccessors; // Most successors kept per context.
+    public final int keysBefore;
+    public final int keysAfter;
+    public final int successorsBefore;
+    public final int successorsAfter;
+    public final long bytesBefore; // Estimated snapshot size before compaction.
+    public final long bytesAfter; // Estimated snapshot size after compaction.
+    public final int[] removedByOrder; // K-Grams dropped of each length, index 0 unused.
+    public final long cappedOccurrences; // Occurrences cut by maxSuccessors, see ContextTrie.capped().
+
+    public Compaction(long budgetBytes, int minCount, int maxSuccessors, int keysBefore, int keysAfter,
+                      int successorsBefore, int successorsAfter, long bytesBefore, long bytesAfter,
+                      int[] removedByOrder, long cappedOccurrences) {
+        this.budgetBytes = budgetBytes;
+        this.minCount = minCount;
+        this.maxSuccessors = maxSuccessors;
+        this.keysBefore = keysBefore;
+        this.keysAfter = keysAfter;
+        this.successorsBefore = successorsBefore;
+        this.successorsAfter = successorsAfter;
+        this.bytesBefore = bytesBefore;
+        this.bytesAfter = bytesAfter;
+        this.removedByOrder = removedByOrder;
+        this.cappedOccurrences = cappedOccurrences;
+    }
+
+    // Returns true if the compacted model fits the budget. It may not when even the single chord contexts, which are
+    // never dropped, take more.
+    public boolean withinBudget() {
+        return bytesAfter <= budgetBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "compacted to " + bytesAfter / 1024 + " KB of " + budgetBytes / 1024 + " KB budget (was "
+                + bytesBefore / 1024 + " KB)" + (withinBudget() ? "" : ", over budget")
+                + "\nK-Grams " + keysBefore + " -> " + keysAfter + ", dropped below count " + minCount
+                + " by length " + Arrays.toString(Arrays.copyOfRange(removedByOrder, 1, removedByOrder.length))
+                + "\nsuccessors " + successorsBefore + " -> " + successorsAfter + ", at most " + maxSuccessors
+                + " per K-Gram, " + cappedOccurrences + " occurrences capped";
+    }
+}
@@ -0,0 +1,322 @@
+import java.util.Arrays;
+
+// ContextTrie is the training store of newChordST. Every distinct chord and every distinct succeeding change is
+// interned once, and every context is a node of a trie over chord ids walked from the newest chord back to the oldest,
+// so a K-Gram of order j is the child of its suffix of order j - 1 and contexts of every order share their suffixes.
+// Successor counts are kept per (node, successor) pair. Nodes, pairs and ids are numbered in order of first
+// appearance, or in one canonical order by sorted(), and everything is held in primitive arrays.
+public class ContextTrie {
+
+    public static final int VALUE_WIDTH = 8; // Ints per packed successor, 4 pitch changes and 4 durations.
+
+    private final TupleInterner chords = new TupleInterner(KGram.CHORD_WIDTH); // Distinct packed chords.
+    private final TupleInterner values = new TupleInterner(VALUE_WIDTH); // Distinct packed successors.
+    private final LongIntMap children = new LongIntMap(); // (parent node, chord id) to child node.
+    private final LongIntMap pairIndex = new LongIntMap(); // (node, successor id) to pair.
+
+    private int[] nodeChord = new int[16]; // Oldest chord id of each node.
+    private int[] nodeParent = new int[16]; // Node without the oldest chord, -1 for the root.
+    private int[] nodeOrder = new int[16]; // Number of chords of each node, 0 for the root.
+    private int nodes = 1; // Number of nodes, node 0 is the empty root.
+
+    private int[] pairNode = new int[16]; // Node of each pair.
+    private int[] pairValue = new int[16]; // Successor id of each pair.
+    private int[] pairCount = new int[16]; // Occurrences of each pair.
+    private int pairs; // Number of pairs.
+
+    public ContextTrie() {
+        nodeParent[0] = -1;
+    }
+
+    // Private helper method, returns the child of parent through chord, adding it if absent.
+    private int child(int parent, int chord) {
+        long key = LongIntMap.key(parent, chord);
+        int node = children.get(key);
+        if (node >= 0) return node;
+        if (nodes == nodeChord.length) {
+            nodeChord = Arrays.copyOf(nodeChord, nodes * 2);
+            nodeParent = Arrays.copyOf(nodeParent, nodes * 2);
+            nodeOrder = Arrays.copyOf(nodeOrder, nodes * 2);
+        }
+        nodeChord[nodes] = chord;
+        nodeParent[nodes] = parent;
+        nodeOrder[nodes] = nodeOrder[parent] + 1;
+        children.put(key, nodes);
+        return nodes++;
+    }
+
+    // Private helper method, adds count occurrences of successor value to node.
+    private void count(int node, int value, int count) {
+        long key = LongIntMap.key(node, value);
+        int pair = pairIndex.get(key);
+        if (pair >= 0) {
+            pairCount[pair] += count;
+            return;
+        }
+        if (pairs == pairNode.length) {
+            pairNode = Arrays.copyOf(pairNode, pairs * 2);
+            pairValue = Arrays.copyOf(pairValue, pairs * 2);
+            pairCount = Arrays.copyOf(pairCount, pairs * 2);
+        }
+        pairNode[pairs] = node;
+        pairValue[pairs] = value;
+        pairCount[pairs] = count;
+        pairIndex.put(key, pairs++);
+    }
+
+    // Adds count occurrences of the packed successor at voff in value after every suffix of the given number of packed
+    // chords at off in packed, from the newest chord alone up to all of them.
+    public void add(int[] packed, int off, int length, int[] value, int voff, int count) {
+        int v = values.intern(value, voff);
+        int node = 0;
+        for (int order = 1; order <= length; order++) {
+            node = child(node, chords.intern(packed, off + (length - order) * KGram.CHORD_WIDTH));
+            count(node, v, count);
+        }
+    }
+
+    // Adds every context and successor count of other to this trie. Nodes and pairs new to this trie are appended in
+    // other's order, so merging tries filled from consecutive slices of a corpus, in slice order, gives exactly the
+    // trie filling one from the whole corpus would.
+    public void merge(ContextTrie other) {
+        int[] map = new int[other.nodes];
+        int[] chord = new int[KGram.CHORD_WIDTH];
+        int[] value = new int[VALUE_WIDTH];
+        for (int n = 1; n < other.nodes; n++) {
+            for (int j = 0; j < KGram.CHORD_WIDTH; j++) chord[j] = other.chords.get(other.nodeChord[n], j);
+            map[n] = child(map[other.nodeParent[n]], chords.intern(chord, 0));
+        }
+        for (int p = 0; p < other.pairs; p++) {
+            for (int j = 0; j < VALUE_WIDTH; j++) value[j] = other.values.get(other.pairValue[p], j);
+            count(map[other.pairNode[p]], values.intern(value, 0), other.pairCount[p]);
+        }
+    }
+
+    // Rebuilds a trie from a snapshot, its entries become nodes 1 and up in order.
+    public static ContextTrie of(ChordSnapshot snapshot) {
+        ContextTrie trie = new ContextTrie();
+        int[] chord = new int[KGram.CHORD_WIDTH];
+        int[] value = new int[VALUE_WIDTH];
+        for (int e = 0; e < snapshot.size(); e++) {
+            for (int j = 0; j < KGram.CHORD_WIDTH; j++) chord[j] = snapshot.chord(e, j);
+            int node = trie.child(snapshot.parent(e) + 1, trie.chords.intern(chord, 0));
+            for (int i = snapshot.first(e); i < snapshot.first(e + 1); i++) {
+                for (int j = 0; j < VALUE_WIDTH; j++) value[j] = snapshot.value(i, j);
+                trie.count(node, trie.values.intern(value, 0), snapshot.count(i));
+            }
+        }
+        return trie;
+    }
+
+    // Returns a copy of the trie numbered in one canonical order, so tries holding the same counts give the same copy
+    // however they were filled. Nodes are numbered depth first from the root, the children of each node in order of
+    // their oldest chord, and the successors of each node are in order of their packed ints, all compared int by int.
+    // Chords and successors are interned as the copy first uses them. Depth first keeps each chain of suffixes close
+    // together, as numbering by first appearance does.
+    public ContextTrie sorted() {
+        int[] chordRank = ranks(chords.sorted());
+        int[] valueRank = ranks(values.sorted());
+
+        // Children of each node in chord order, the child in the low half of each key
+        int[] start = new int[nodes + 1];
+        for (int n = 1; n < nodes; n++) start[nodeParent[n] + 1]++;
+        for (int n = 0; n < nodes; n++) start[n + 1] += start[n];
+        long[] children = new long[nodes];
+        int[] fill = Arrays.copyOf(start, nodes);
+        for (int n = 1; n < nodes; n++) children[fill[nodeParent[n]]++] = (long) chordRank[nodeChord[n]] << 32 | n;
+        for (int n = 0; n < nodes; n++) Arrays.sort(children, start[n], start[n + 1]);
+
+        // Walk the trie depth first, pushing children last first so they come off the stack in order
+        ContextTrie res = new ContextTrie();
+        int[] original = new int[nodes]; // Node of each node of the copy.
+        int[] place = new int[nodes]; // Node of the copy of each node.
+        int[] stack = new int[nodes];
+        int top = 0;
+        int[] chord = new int[KGram.CHORD_WIDTH];
+        for (int i = start[1] - 1; i >= start[0]; i--) stack[top++] = (int) children[i];
+        while (top > 0) {
+            int n = stack[--top];
+            for (int j = 0; j < KGram.CHORD_WIDTH; j++) chord[j] = chords.get(nodeChord[n], j);
+            int copy = res.child(place[nodeParent[n]], res.chords.intern(chord, 0));
+            place[n] = copy;
+            original[copy] = n;
+            for (int i = start[n + 1] - 1; i >= start[n]; i--) stack[top++] = (int) children[i];
+        }
+
+        // Successors of each node in the copy's node order, in successor order, the pair in the low half of each key
+        start = new int[nodes + 1];
+        for (int p = 0; p < pairs; p++) start[pairNode[p] + 1]++;
+        for (int n = 0; n < nodes; n++) start[n + 1] += start[n];
+        long[] grouped = new long[pairs];
+        fill = Arrays.copyOf(start, nodes);
+        for (int p = 0; p < pairs; p++) grouped[fill[pairNode[p]]++] = (long) valueRank[pairValue[p]] << 32 | p;
+        int[] value = new int[VALUE_WIDTH];
+        for (int copy = 1; copy < nodes; copy++) {
+            int n = original[copy];
+            Arrays.sort(grouped, start[n], start[n + 1]);
+            for (int i = start[n]; i < start[n + 1]; i++) {
+                int p = (int) grouped[i];
+                for (int j = 0; j < VALUE_WIDTH; j++) value[j] = values.get(pairValue[p], j);
+                res.count(copy, res.values.intern(value, 0), pairCount[p]);
+            }
+        }
+        return res;
+    }
+
+    // Static helper method, the place of each id in order, which lists every id once.
+    private static int[] ranks(int[] order) {
+        int[] res = new int[order.length];
+        for (int r = 0; r < order.length; r++) res[order[r]] = r;
+        return res;
+    }
+
+    // Returns the total count of each node, 0 for the root.
+    public int[] totals() {
+        int[] res = new int[nodes];
+        for (int p = 0; p < pairs; p++) res[pairNode[p]] += pairCount[p];
+        return res;
+    }
+
+    // Returns true for every node kept by pruned(minCount): the root, every single chord, and every longer context
+    // counted at least minCount times whose suffix is kept. totals must come from totals().
+    public boolean[] survivors(int[] totals, int minCount) {
+        boolean[] res = new boolean[nodes];
+        res[0] = true;
+        for (int n = 1; n < nodes; n++) {
+            res[n] = res[nodeParent[n]] && (nodeOrder[n] == 1 || totals[n] >= minCount);
+        }
+        return res;
+    }
+
+    // Returns the occurrences pruned(keep, maxSuccessors) drops from the nodes it keeps: for every kept node with more
+    // than maxSuccessors successors, the counts of all but its maxSuccessors largest. Ties at the cut do not change
+    // the sum, whichever of the equal counts is dropped.
+    public long capped(boolean[] keep, int maxSuccessors) {
+        int[] first = firstPairs();
+        int[] grouped = groupedPairs(first);
+        int[] ranked = new int[0];
+        long res = 0;
+        for (int n = 1; n < nodes; n++) {
+            int size = first[n + 1] - first[n];
+            if (!keep[n] || size <= maxSuccessors) continue;
+            if (ranked.length < size) ranked = new int[size];
+            for (int i = 0; i < size; i++) ranked[i] = pairCount[grouped[first[n] + i]];
+            Arrays.sort(ranked, 0, size);
+            for (int i = 0; i < size - maxSuccessors; i++) res += ranked[i];
+        }
+        return res;
+    }
+
+    // Returns a copy of the trie with only the nodes kept by survivors(), and only the maxSuccessors most frequent
+    // successors of each, ties going to the first seen. Dropped contexts need no merging, their counts are already
+    // part of their suffixes, which generation backs off to. Chords and successors no longer used are dropped too.
+    public ContextTrie pruned(boolean[] keep, int maxSuccessors) {
+        int[] first = firstPairs();
+        int[] grouped = groupedPairs(first);
+
+        ContextTrie res = new ContextTrie();
+        int[] map = new int[nodes];
+        int[] chord = new int[KGram.CHORD_WIDTH];
+        int[] value = new int[VALUE_WIDTH];
+        int[] ranked = new int[0];
+        for (int n = 1; n < nodes; n++) {
+            if (!keep[n]) continue;
+            for (int j = 0; j < KGram.CHORD_WIDTH; j++) chord[j] = chords.get(nodeChord[n], j);
+            map[n] = res.child(map[nodeParent[n]], res.chords.intern(chord, 0));
+
+            // Rank the node's successors by count when there are more than maxSuccessors, then keep them in order
+            int size = first[n + 1] - first[n];
+            int threshold = 0;
+            int atThreshold = size;
+            if (size > maxSuccessors) {
+                if (ranked.length < size) ranked = new int[size];
+                for (int i = 0; i < size; i++) ranked[i] = pairCount[grouped[first[n] + i]];
+                Arrays.sort(ranked, 0, size);
+                threshold = ranked[size - maxSuccessors];
+                atThreshold = 0;
+                for (int i = size - maxSuccessors; i < size; i++) if (ranked[i] == threshold) atThreshold++;
+            }
+            for (int i = 0; i < size; i++) {
+                int p = grouped[first[n] + i];
+                if (pairCount[p] < threshold || (pairCount[p] == threshold && atThreshold-- <= 0)) continue;
+                for (int j = 0; j < VALUE_WIDTH; j++) value[j] = values.get(pairValue[p], j);
+                res.count(map[n], res.values.intern(value, 0), pairCount[p]);
+            }
+        }
+        return res;
+    }
+
+    // Private helper method, returns the index of the first pair of each node in pairs grouped by node, with the
+    // number of pairs at the end.
+    private int[] firstPairs() {
+        int[] res = new int[nodes + 1];
+        for (int p = 0; p < pairs; p++) res[pairNode[p] + 1]++;
+        for (int n = 0; n < nodes; n++) res[n + 1] += res[n];
+        return res;
+    }
+
+    // Private helper method, returns the pairs grouped by node in pair order, first must come from firstPairs().
+    private int[] groupedPairs(int[] first) {
+        int[] res = new int[pairs];
+        int[] fill = Arrays.copyOf(first, nodes);
+        for (int p = 0; p < pairs; p++) res[fill[pairNode[p]]++] = p;
+        return res;
+    }
+
+    // Returns the number of nodes, including the root.
+    public int nodes() {
+        return nodes;
+    }
+
+    // Returns the oldest chord id of node n.
+    public int chord(int n) {
+        return nodeChord[n];
+    }
+
+    // Returns the node of n without its oldest chord, -1 for the root.
+    public int parent(int n) {
+        return nodeParent[n];
+    }
+
+    // Returns the number of chords of node n.
+    public int order(int n) {
+        return nodeOrder[n];
+    }
+
+    // Returns the estimated heap taken by the trie in bytes.
+    public long estimatedBytes() {
+        return chords.estimatedBytes() + values.estimatedBytes() + children.estimatedBytes()
+                + pairIndex.estimatedBytes() + (nodeChord.length + nodeParent.length + nodeOrder.length) * 4L
+                + (pairNode.length + pairValue.length + pairCount.length) * 4L;
+    }
+
+    // Returns the interned chords.
+    public TupleInterner chords() {
+        return chords;
+    }
+
+    // Returns the interned successors.
+    public TupleInterner values() {
+        return values;
+    }
+
+    // Returns the number of (node, successor) pairs.
+    public int pairs() {
+        return pairs;
+    }
+
+    // Returns the node of pair p.
+    public int pairNode(int p) {
+        return pairNode[p];
+    }
+
+    // Returns the successor id of pair p.
+    public int pairValue(int p) {
+        return pairValue[p];
+    }
+
+    // Returns the count of pair p.
+    public int pairCount(int p) {
+        return pairCount[p];
+    }
+}
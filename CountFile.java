@@ -0,0 +1,385 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+
+// CountFile holds the training counts of a newChordST as a sorted run of records, so models trained apart, in other
+// processes or on other machines, can be combined. Each record is one K-Gram of full length, a successor that followed
+// it and how often, and replaying a record counts it under every suffix of the K-Gram, as training does. Records are
+// sorted by K-Gram, chord by chord from the newest, then by successor, comparing ints one by one, which is the order
+// ContextTrie.sorted() numbers full length K-Grams in. Any number of files then merge in one streaming pass that holds
+// a single record of each file, summing equal records as they meet.
+//
+// A merged run does not depend on how the corpus was split between files. Models are numbered in one canonical order
+// when frozen, see ContextTrie.sorted(), so a model built from a merged run is the model one process training on the
+// whole corpus gives, and samples the same pieces from the same chorale and seed.
+//
+// File format, all ints big-endian:
+//   header   MAGIC, VERSION, kLen, CHORD_WIDTH, VALUE_WIDTH, ticks per beat, records
+//   records  [records * (kLen * CHORD_WIDTH + VALUE_WIDTH + 1)]    packed K-Gram oldest chord first, successor, count
+public final class CountFile {
+
+    private static final int MAGIC = 0x4242434e; // "BBCN"
+    private static final int VERSION = 2;
+    private static final int WIDTH = KGram.CHORD_WIDTH;
+    private static final int VALUE_WIDTH = ContextTrie.VALUE_WIDTH;
+    private static final int RECORDS = 6; // Position of the record count in the header, in ints.
+
+    private CountFile() {
+    }
+
+    // Reads the records of one file in order. The current record is the key ints followed by the count.
+    private static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final int kLen;
+        private final int ticks;
+        private final int order; // Position of the file among those merged, breaks ties between equal records.
+        private final int[] record;
+        private long left; // Records not read yet.
+
+        private Reader(Path path, int order) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+            try {
+                if (in.readInt() != MAGIC) throw new IllegalArgumentException("Not a BachBot count file: " + path);
+                if (in.readInt() != VERSION) throw new IllegalArgumentException("Unsupported count file version");
+                kLen = in.readInt();
+                if (kLen < 1 || in.readInt() != WIDTH || in.readInt() != VALUE_WIDTH) {
+                    throw new IllegalArgumentException("Incompatible count file layout: " + path);
+                }
+                ticks = in.readInt();
+                left = in.readInt() & 0xffffffffL;
+            } catch (IOException | RuntimeException e) {
+                in.close();
+                throw e;
+            }
+            this.order = order;
+            record = new int[kLen * WIDTH + VALUE_WIDTH + 1];
+        }
+
+        // Reads the next record, returns false once every record has been read.
+        private boolean next() throws IOException {
+            if (left == 0) return false;
+            for (int j = 0; j < record.length; j++) record[j] = in.readInt();
+            if (record[record.length - 1] <= 0) throw new IllegalArgumentException("Corrupt count file");
+            left--;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // Receives the layout shared by the files being merged, before any record.
+    private interface Layout {
+        void accept(int kLen, int ticks) throws IOException;
+    }
+
+    // Receives merged records in sorted order, the key ints and their summed count.
+    private interface Sink {
+        void accept(int[] key, int count) throws IOException;
+    }
+
+    // Writes the full length K-Grams of trie, with the ticks per beat of their durations, to path in sorted order.
+    // A compacted trie has lost full length counts its shorter K-Grams still hold, so it can not be written.
+    public static void write(int kLen, int ticks, ContextTrie trie, Path path) throws IOException {
+        if (!replayable(kLen, trie)) throw new IllegalStateException("Compacted models can not be written as counts");
+
+        // Sorted, the full length K-Grams come in record order, each with its successors in order
+        ContextTrie sorted = trie.sorted();
+        int records = 0;
+        for (int p = 0; p < sorted.pairs(); p++) if (sorted.order(sorted.pairNode(p)) == kLen) records++;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path),
+                1 << 16))) {
+            int[] header = {MAGIC, VERSION, kLen, WIDTH, VALUE_WIDTH, ticks, records};
+            for (int h : header) out.writeInt(h);
+            for (int p = 0; p < sorted.pairs(); p++) {
+                int node = sorted.pairNode(p);
+                if (sorted.order(node) != kLen) continue;
+
+                // The node's chord is its oldest and its parent holds the rest
+                for (int n = node; sorted.order(n) > 0; n = sorted.parent(n)) {
+                    for (int j = 0; j < WIDTH; j++) out.writeInt(sorted.chords().get(sorted.chord(n), j));
+                }
+                for (int j = 0; j < VALUE_WIDTH; j++) out.writeInt(sorted.values().get(sorted.pairValue(p), j));
+                out.writeInt(sorted.pairCount(p));
+            }
+        }
+    }
+
+    // Private helper method, returns true if replaying the full length K-Grams of trie gives back all of trie: every
+    // count of a shorter K-Gram is the sum of the same successor's counts under the K-Grams one chord longer.
+    private static boolean replayable(int kLen, ContextTrie trie) {
+        LongIntMap pairs = new LongIntMap();
+        for (int p = 0; p < trie.pairs(); p++) pairs.put(LongIntMap.key(trie.pairNode(p), trie.pairValue(p)), p);
+        long[] longer = new long[trie.pairs()];
+        for (int p = 0; p < trie.pairs(); p++) {
+            int node = trie.pairNode(p);
+            if (trie.order(node) > kLen) return false;
+            if (trie.order(node) == 1) continue;
+            int shorter = pairs.get(LongIntMap.key(trie.parent(node), trie.pairValue(p)));
+            if (shorter < 0) return false;
+            longer[shorter] += trie.pairCount(p);
+        }
+        for (int p = 0; p < trie.pairs(); p++) {
+            if (trie.order(trie.pairNode(p)) < kLen && longer[p] != trie.pairCount(p)) return false;
+        }
+        return true;
+    }
+
+    // Private helper method, compares the keys of records x and y of K-Gram length kLen in record order.
+    private static int compare(int[] x, int[] y, int kLen) {
+        for (int chord = kLen - 1; chord >= 0; chord--) {
+            for (int j = chord * WIDTH; j < (chord + 1) * WIDTH; j++) {
+                int c = Integer.compare(x[j], y[j]);
+                if (c != 0) return c;
+            }
+        }
+        for (int j = kLen * WIDTH; j < kLen * WIDTH + VALUE_WIDTH; j++) {
+            int c = Integer.compare(x[j], y[j]);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+
+    // Merges the count files at inputs into one count file at output.
+    public static void merge(List<Path> inputs, Path output) throws IOException {
+        long[] records = new long[1];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output),
+                1 << 16))) {
+            merge(inputs, (kLen, ticks) -> {
+                int[] header = {MAGIC, VERSION, kLen, WIDTH, VALUE_WIDTH, ticks, 0};
+                for (int h : header) out.writeInt(h);
+            }, (key, count) -> {
+                for (int k : key) out.writeInt(k);
+                out.writeInt(count);
+                records[0]++;
+            });
+        }
+        if (records[0] > 0xffffffffL) throw new IllegalStateException("Too many records for one count file");
+
+        // The number of records is only known now, so it is filled into the header last
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, (int) records[0]), RECORDS * 4L);
+        }
+    }
+
+    // Returns a model trained from the count files at inputs, merged on the fly.
+    public static newChordST train(List<Path> inputs) throws IOException {
+        newChordST[] res = new newChordST[1];
+        merge(inputs, (kLen, ticks) -> {
+            if (ticks != newChordST.TICKS) throw new IllegalArgumentException("Incompatible count file time grid");
+            res[0] = new newChordST(kLen);
+        }, (key, count) -> res[0].put(key, 0, key, key.length - VALUE_WIDTH, count));
+        return res[0];
+    }
+
+    // Private helper method, merges the records of inputs into sink, after handing their layout to layout. Every file
+    // must have the same K-Gram length and time grid.
+    private static void merge(List<Path> inputs, Layout layout, Sink sink) throws IOException {
+        if (inputs.isEmpty()) throw new IllegalArgumentException("No count files to merge");
+        List<Reader> readers = new ArrayList<>();
+        try {
+            for (Path p : inputs) {
+                Reader reader = new Reader(p, readers.size());
+                readers.add(reader);
+                if (reader.kLen != readers.get(0).kLen) throw new IllegalArgumentException("Incorrect K-Gram Length");
+                if (reader.ticks != readers.get(0).ticks) {
+                    throw new IllegalArgumentException("Incompatible count file time grid");
+                }
+            }
+            int kLen = readers.get(0).kLen;
+            int width = readers.get(0).record.length - 1;
+            layout.accept(readers.get(0).kLen, readers.get(0).ticks);
+
+            PriorityQueue<Reader> heads = new PriorityQueue<>(readers.size(), (a, b) -> {
+                int c = compare(a.record, b.record, kLen);
+                return c != 0 ? c : Integer.compare(a.order, b.order);
+            });
+            for (Reader r : readers) if (r.next()) heads.add(r);
+
+            int[] key = new int[width];
+            while (!heads.isEmpty()) {
+                Reader r = heads.poll();
+                System.arraycopy(r.record, 0, key, 0, width);
+                int count = r.record[width];
+                if (r.next()) heads.add(r);
+                while (!heads.isEmpty() && compare(heads.peek().record, key, kLen) == 0) {
+                    r = heads.poll();
+                    count = Math.addExact(count, r.record[width]);
+                    if (r.next()) heads.add(r);
+                }
+                sink.accept(key, count);
+            }
+        } finally {
+            for (Reader r : readers) r.close();
+        }
+    }
+
+    // Command line tool for training across processes, see BachBot.saveCounts() and fromCounts():
+    //   count <kLen> <out> <file.krn>...    trains on the chorale files and writes their counts and seeds to out
+    //   merge <out> <in>...                 merges count files and their seeds into out
+    //   build <out> <in>...                 builds a model from count files and saves it with its seeds to out
+    //   check <kLen> <parts>                checks the chorales counted in parts and combined against one model
+    // For example, four worker processes each counting a quarter of the chorales, then combined:
+    //   for i in 0 1 2 3; do java CountFile count 3 part$i.counts $(ls chor*.krn | awk "NR % 4 == $i") & done; wait
+    //   java CountFile build chorales.model part*.counts
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            StdOut.println("usage: java CountFile count|merge|build|check ...");
+            return;
+        }
+        List<Path> inputs = new ArrayList<>();
+        if (args[0].equals("count")) {
+            for (int i = 3; i < args.length; i++) inputs.add(Paths.get(args[i]));
+            BachBot bot = new BachBot(Integer.parseInt(args[1]));
+            bot.addAll(inputs, Runtime.getRuntime().availableProcessors());
+            bot.saveCounts(Paths.get(args[2]));
+        } else if (args[0].equals("merge") || args[0].equals("build")) {
+            for (int i = 2; i < args.length; i++) inputs.add(Paths.get(args[i]));
+            long start = System.nanoTime();
+            if (args[0].equals("merge")) BachBot.mergeCounts(inputs, Paths.get(args[1]));
+            else BachBot.fromCounts(inputs).save(Paths.get(args[1]));
+            StdOut.printf("%s %d files in %.1f ms%n", args[0], inputs.size(), (System.nanoTime() - start) / 1e6);
+        } else if (args[0].equals("check")) {
+            check(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        } else {
+            throw new IllegalArgumentException("Unknown command " + args[0]);
+        }
+    }
+
+    // Private helper method, checks the claims of the class comment on the chorales, throwing on the first that
+    // fails. The chorales are split into parts both in consecutive slices and interleaved, each part is counted by
+    // its own BachBot, and the parts are merged in two stages. Both merged files must equal the counts of one BachBot
+    // trained on every chorale, byte for byte, and so must the seeds merged from consecutive slices. A model built
+    // from the interleaved parts must hold every K-Gram and successor count of that BachBot and generate the same
+    // pieces from the same chorales and seeds, and a compacted model must be refused. Compacting a model of single
+    // chords drops no count its K-Grams do not, so it is only refused for longer K-Grams.
+    private static void check(int kLen, int parts) throws IOException {
+        List<Path> chorales = BachBot.chorales();
+        if (parts < 2 || parts > chorales.size()) throw new IllegalArgumentException("Need 2 to " + chorales.size()
+                + " parts");
+        Path dir = Files.createTempDirectory("counts");
+        try {
+            BachBot serial = new BachBot(kLen);
+            serial.addAll(chorales, 1);
+            Path all = dir.resolve("all.counts");
+            serial.saveCounts(all);
+
+            List<Path> interleaved = new ArrayList<>();
+            for (boolean consecutive : new boolean[]{true, false}) {
+                List<Path> counted = new ArrayList<>();
+                for (int i = 0; i < parts; i++) {
+                    List<Path> part = new ArrayList<>();
+                    for (int c = 0; c < chorales.size(); c++) {
+                        if ((consecutive ? c * parts / chorales.size() : c % parts) == i) part.add(chorales.get(c));
+                    }
+                    BachBot bot = new BachBot(kLen);
+                    bot.addAll(part, 1);
+                    Path path = dir.resolve((consecutive ? "slice" : "every") + i + ".counts");
+                    bot.saveCounts(path);
+                    counted.add(path);
+                }
+                Path stage = dir.resolve("stage.counts");
+                Path merged = dir.resolve("merged.counts");
+                BachBot.mergeCounts(counted.subList(0, parts / 2), stage);
+                List<Path> rest = new ArrayList<>(counted.subList(parts / 2, parts));
+                rest.add(0, stage);
+                BachBot.mergeCounts(rest, merged);
+                SelfCheck.that(Arrays.equals(Files.readAllBytes(merged), Files.readAllBytes(all)),
+                        (consecutive ? "consecutive" : "interleaved") + " parts merge to other counts");
+                if (consecutive) {
+                    SelfCheck.that(Arrays.equals(Files.readAllBytes(merged.resolveSibling("merged.counts.seeds")),
+                            Files.readAllBytes(all.resolveSibling("all.counts.seeds"))), "merged seeds differ");
+                } else {
+                    interleaved = counted;
+                }
+            }
+
+            BachBot rebuilt = BachBot.fromCounts(interleaved);
+            ChordSnapshot expected = serial.chordST.snapshot();
+            ChordSnapshot built = rebuilt.chordST.snapshot();
+            SelfCheck.that(built.size() == expected.size() && built.successors() == expected.successors(),
+                    "model sizes");
+            sameCounts(expected, built);
+            samePieces(serial, rebuilt, chorales);
+
+            BachBot compacted = new BachBot(kLen);
+            compacted.addAll(chorales, 1);
+            compacted.compact(1, 1);
+            boolean refused = false;
+            try {
+                compacted.saveCounts(dir.resolve("compacted.counts"));
+            } catch (IllegalStateException e) {
+                refused = true;
+            }
+            SelfCheck.that(kLen == 1 || (refused && !Files.exists(dir.resolve("compacted.counts"))),
+                    "compacted model written as counts");
+            StdOut.println(chorales.size() + " chorales in " + parts + " parts: " + built.size() + " K-Grams and "
+                    + built.successors() + " successors match");
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path f : files) Files.delete(f);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    // Private helper method, throws unless every K-Gram of expected is in actual with the same successor counts.
+    private static void sameCounts(ChordSnapshot expected, ChordSnapshot actual) {
+        int[] value = new int[VALUE_WIDTH];
+        for (int e = 0; e < expected.size(); e++) {
+            int[] packed = new int[expected.order(e) * WIDTH];
+            int off = 0;
+            for (int c = e; c >= 0; c = expected.parent(c)) {
+                for (int j = 0; j < WIDTH; j++) packed[off++] = expected.chord(c, j);
+            }
+            int f = actual.find(packed, KGram.hash(packed));
+            SelfCheck.that(f >= 0 && actual.total(f) == expected.total(e), "total of K-Gram " + e);
+            SelfCheck.that(actual.first(f + 1) - actual.first(f) == expected.first(e + 1) - expected.first(e),
+                    "successors of K-Gram " + e);
+            for (int i = expected.first(e); i < expected.first(e + 1); i++) {
+                for (int j = 0; j < VALUE_WIDTH; j++) value[j] = expected.value(i, j);
+                int count = 0;
+                for (int k = actual.first(f); k < actual.first(f + 1); k++) {
+                    boolean equal = true;
+                    for (int j = 0; j < VALUE_WIDTH; j++) equal &= actual.value(k, j) == value[j];
+                    if (equal) count = actual.count(k);
+                }
+                SelfCheck.that(count == expected.count(i), "count of successor " + i);
+            }
+        }
+    }
+
+    // Private helper method, throws unless expected and actual generate the same piece from each of a few chorales
+    // spread over the corpus, given the same seed.
+    private static void samePieces(BachBot expected, BachBot actual, List<Path> chorales) {
+        for (int s = 0; s < 20; s++) {
+            String name = chorales.get(s * chorales.size() / 20).toString();
+            Kern a = expected.generate(200, name, new SplittableRandom(s));
+            Kern b = actual.generate(200, name, new SplittableRandom(s));
+            boolean equal = a.length() == b.length();
+            for (int v = 0; v < VALUE_WIDTH / 2 && equal; v++) {
+                for (int i = 0; i < a.length(); i++) {
+                    equal &= a.getPitch(v, i) == b.getPitch(v, i) && a.getTicks(v, i) == b.getTicks(v, i);
+                }
+            }
+            SelfCheck.that(equal, "piece generated from " + name + " with seed " + s);
+        }
+    }
+}
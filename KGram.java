@@ -0,0 +1,47 @@
+// KGram holds the packed layout and hash of the K-Gram keys of the model. Each chord of a K-Gram takes up CHORD_WIDTH
+// ints: the three interval deltas between adjacent voices followed by the four durations quantized to ticks. K-Grams
+// are never boxed, every caller keeps its chords in a packed int array and passes a range of it with its hash.
+public final class KGram {
+
+    public static final int CHORD_WIDTH = 7; // Ints per packed chord, 3 intervals and 4 durations.
+    private static final int CHORD_PRIME = 0x01000193; // Multiplier between the chord hashes of a K-Gram.
+
+    // Private constructor, KGram only has static helpers.
+    private KGram() {
+    }
+
+    // Hash of a single packed chord beginning at off.
+    public static int chordHash(int[] packed, int off) {
+        int h = 0;
+        for (int i = 0; i < CHORD_WIDTH; i++) h = 31 * h + packed[off + i];
+        return h;
+    }
+
+    // Hash of a whole packed K-Gram. The hash is polynomial in the chord hashes, so the hash of a K-Gram without its
+    // oldest chord is found by subtracting that chord's term, see oldestFactor().
+    public static int hash(int[] packed) {
+        return hash(packed, 0, packed.length / CHORD_WIDTH);
+    }
+
+    // Hash of the packed K-Gram of the given number of chords starting at off.
+    public static int hash(int[] packed, int off, int chords) {
+        int h = 0;
+        for (int i = 0; i < chords; i++) h = h * CHORD_PRIME + chordHash(packed, off + i * CHORD_WIDTH);
+        return h;
+    }
+
+    // Returns the factor the oldest chord hash carries in the hash of a K-Gram of length chords.
+    public static int oldestFactor(int length) {
+        int f = 1;
+        for (int i = 1; i < length; i++) f *= CHORD_PRIME;
+        return f;
+    }
+
+    // Helper method, spreads the bits of a hash before masking it into a slot. Shared by the hash tables of the model.
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
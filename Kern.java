@@ -4,174 +4,278 @@ import jm.music.data.Phrase;
 import jm.music.data.Score;
 import jm.util.Play;
 
-import java.util.ArrayList;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 // Kern class implements the parsing of four-part SATB chorales in .krn format, as well as allowing a generated chord
-// sequence to be converted to Score files. If Kern is initialized with a double ArrayList, each chord is given a
-// constant duration.
+// sequence to be converted to Score files. Pitches and durations are stored in primitive columns, one per voice.
+// Durations are kept as whole ticks, TICKS per jMusic beat, and only turned into jMusic time values by getScore().
+// A chorale opened from a KernCorpus is a view of the corpus columns instead, read in place and never parsed.
 public class Kern {
 
-    // 2D ArrayLists are formatted as follows:
-    // [Soprano, Alto, Tenor, Bass]
-    // where each item of the list is a sequence of raw strings, time values, and pitches respectively.
-
-    private final ArrayList<ArrayList<String>> raw; // Raw String data input .krn file
-    private final ArrayList<ArrayList<Double>> times; // Time value of each item
-    private final ArrayList<ArrayList<Integer>> pitch; // Pitch value of each item
+    // 2D arrays are formatted as follows:
+    // [Bass, Tenor, Alto, Soprano]
+    // where each column is the sequence of durations and pitches of one voice.
+
+    public static final int TICKS = 48; // Ticks per jMusic beat, covers 32nds, dots and triplets exactly.
+
+    private int[][] ticks; // Duration of each item in ticks
+    private int[][] pitch; // Pitch value of each item
+    private int length; // Number of chords
+    private int[] phraseStarts = {0}; // First chord of each phrase, the first chord and each one after a fermata
+    private int phraseCount = 1; // Number of phrases
+    private volatile int[][] filled; // Pitch columns with rests filled in, built on first use
+    private final IntBuffer view; // Corpus columns of a view, null unless opened from a KernCorpus
+    private final int viewOff; // Position of the chorale's first chord in the view's first column
+    private final int stride; // Ints per column of the view
     private final String fileName; // File name
     private static final int VOICES = 4;
+    private static final int REST = -2147483648; // Pitch value of rests.
 
     // Returns fileName.
     public String getFileName() {
         return fileName;
     }
 
-    // Constructor with file name, the file is open and parsed.
+    // Constructor with file name, the file is read and parsed in a single pass over its bytes.
     public Kern(String filename) {
         this.fileName = filename;
-        In file = new In(fileName);
-
-        raw = new ArrayList<>();
-        times = new ArrayList<>();
-        pitch = new ArrayList<>();
+        view = null;
+        viewOff = 0;
+        stride = 0;
+
+        ticks = new int[VOICES][64];
+        pitch = new int[VOICES][64];
+
+        byte[] buf = read(filename);
+        int line = 1;
+        for (int pos = 0; pos < buf.length; line++) {
+            int end = pos;
+            while (end < buf.length && buf[end] != '\n') end++;
+            parseLine(buf, pos, end, line);
+            pos = end + 1;
+        }
 
+        // Trim columns to length, a fermata on the last chord starts no phrase
         for (int i = 0; i < VOICES; i++) {
-            raw.add(new ArrayList<>());
-            times.add(new ArrayList<>());
-            pitch.add(new ArrayList<>());
-        }
-
-        // Read file contents
-        while (!file.isEmpty()) {
-            String temp = file.readString();
-            // Ignore notes (notated with a ! at beginning) and measure numbers (notated with =)
-            if (temp.charAt(0) != '!' && (temp.charAt(0) != '=')) {
-                raw.get(0).add(temp);
-                for (int i = 1; i < VOICES; i++) {
-                    raw.get(i).add(file.readString());
-                }
-            } else {
-                file.readLine();
-            }
+            ticks[i] = Arrays.copyOf(ticks[i], length);
+            pitch[i] = Arrays.copyOf(pitch[i], length);
         }
+        while (phraseCount > 0 && phraseStarts[phraseCount - 1] >= length) phraseCount--;
+        phraseStarts = Arrays.copyOf(phraseStarts, phraseCount);
+    }
 
-        // Clean data
-        for (int i = 0; i < raw.get(0).size(); i++) {
-
-            // Ignore tandem interpretations (notated with * at beginning)
-            if (raw.get(0).get(i).charAt(0) != '*') {
-                String temp;
-                int ind;
-                for (int j = 0; j < VOICES; j++) {
-
-                    // Remove irrelevant chars
-                    temp = raw.get(j).get(i);
-                    if (temp.charAt(0) == '[') temp = temp.substring(1);
-                    if (temp.charAt(0) == '(') temp = temp.substring(1);
-                    if (temp.charAt(temp.length() - 1) == ']') temp = temp.substring(0, temp.length() - 1);
-                    if (temp.charAt(temp.length() - 1) == ';') temp = temp.substring(0, temp.length() - 1);
-                    if (temp.charAt(temp.length() - 1) == 'L') temp = temp.substring(0, temp.length() - 1);
-                    if (temp.charAt(temp.length() - 1) == 'J') temp = temp.substring(0, temp.length() - 1);
-
-                    // Store index where pitch value data begins
-                    ind = splice(temp);
-
-                    // Parse data
-                    if (ind > 0) {
-                        pitch.get(j).add(pitch(temp.substring(ind)));
-                        if (temp.charAt(ind - 1) == '.') {
-                            times.get(j).add(dt(Double.parseDouble(temp.substring(0, ind))));
-                        } else {
-                            times.get(j).add(t(Double.parseDouble(temp.substring(0, ind))));
-                        }
-                    } else if (temp.equals(".")) {
-                        pitch.get(j).add(0);
-                        times.get(j).add(0.);
-                    }
-                }
+    // Private helper method, reads the whole file, falling back to the classpath when it is not on disk (the chorales
+    // are bundled in the jar).
+    private static byte[] read(String name) {
+        try {
+            Path path = Paths.get(name);
+            if (Files.isRegularFile(path)) return Files.readAllBytes(path);
+
+            InputStream in = Kern.class.getResourceAsStream(name);
+            if (in == null) throw new IllegalArgumentException("Could not open " + name);
+            try (InputStream is = in) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] chunk = new byte[8192];
+                for (int n = is.read(chunk); n > 0; n = is.read(chunk)) out.write(chunk, 0, n);
+                return out.toByteArray();
             }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not open " + name, e);
         }
     }
 
-    // Alternate constructor method, used for playing generated chords. Mutating input ArrayList does not affect
-    // object.
-    public Kern(ArrayList<ArrayList<Integer>> pitch, ArrayList<ArrayList<Double>> time) {
-        fileName = "null";
-        this.pitch = pitch;
-        this.times = time;
-        raw = new ArrayList<>();
+    // Private helper method, checks if input is whitespace separating spines.
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
     }
 
-    // Returns a formatted version of the pitch array, without rests (replaced with the notes before said rests)
-    // changing the return value does not mutate the instance variable
-    public ArrayList<ArrayList<Integer>> getPitch() {
-        ArrayList<ArrayList<Integer>> result = new ArrayList<>();
-        int lastPitch;
-        for (int i = 0; i < VOICES; i++) {
-            lastPitch = pitch.get(i).get(0);
-            result.add(new ArrayList<>());
-            for (int j = 0; j < pitch.get(i).size(); j++) {
-                if (pitch.get(i).get(j) > 0) {
-                    result.get(i).add(pitch.get(i).get(j));
-                    lastPitch = pitch.get(i).get(j);
-                } else {
-                    result.get(i).add(lastPitch);
-                }
+    // Private helper method, parses the line in buf[from, to). Comments (notated with a ! at beginning), measure
+    // numbers (notated with =) and tandem interpretations (notated with * at beginning) are skipped, every other line
+    // must hold one token per voice. A fermata (notated with ;) in any voice ends the phrase at that chord.
+    private void parseLine(byte[] buf, int from, int to, int line) {
+        while (from < to && isSpace(buf[from])) from++;
+        if (from == to || buf[from] == '!' || buf[from] == '=') return;
+        boolean data = buf[from] != '*';
+
+        if (data && length == pitch[0].length) {
+            for (int i = 0; i < VOICES; i++) {
+                ticks[i] = Arrays.copyOf(ticks[i], length * 2);
+                pitch[i] = Arrays.copyOf(pitch[i], length * 2);
             }
         }
-        return result;
+
+        int voice = 0;
+        for (int pos = from; pos < to; ) {
+            int end = pos;
+            while (end < to && !isSpace(buf[end])) end++;
+            if (voice == VOICES) throw malformed(line, "more than " + VOICES + " spines");
+            if (data) parseToken(buf, pos, end, voice, line);
+            voice++;
+            pos = end;
+            while (pos < to && isSpace(buf[pos])) pos++;
+        }
+        if (voice != VOICES) throw malformed(line, "expected " + VOICES + " spines, found " + voice);
+        if (!data) return;
+        length++;
+
+        for (int pos = from; pos < to; pos++) {
+            if (buf[pos] != ';') continue;
+            if (phraseCount == phraseStarts.length) phraseStarts = Arrays.copyOf(phraseStarts, phraseCount * 2);
+            phraseStarts[phraseCount++] = length;
+            break;
+        }
     }
 
-    public ArrayList<ArrayList<Double>> getTimes() {
-        return times;
+    // Private helper method, decodes the token in buf[from, to) and stores it as the current chord of voice. A token
+    // is an optional tie or slur opening, a duration with dots, then a pitch (letter repeated per octave) or rest with
+    // accidentals, and trailing tie, phrase, beam and editorial marks, which are skipped. A lone "." continues the
+    // previous note.
+    private void parseToken(byte[] buf, int from, int to, int voice, int line) {
+        if (to - from == 1 && buf[from] == '.') {
+            pitch[voice][length] = 0;
+            ticks[voice][length] = 0;
+            return;
+        }
+
+        int pos = from;
+        while (pos < to && (buf[pos] == '[' || buf[pos] == '(')) pos++;
+
+        int dur = 0;
+        int digits = 0;
+        while (pos < to && buf[pos] >= '0' && buf[pos] <= '9') {
+            dur = dur * 10 + buf[pos++] - '0';
+            digits++;
+        }
+        if (digits == 0) throw malformed(line, "missing duration in spine " + (voice + 1));
+        int dots = 0;
+        while (pos < to && buf[pos] == '.') {
+            dots++;
+            pos++;
+        }
+
+        if (pos == to) throw malformed(line, "missing pitch in spine " + (voice + 1));
+        char name = (char) buf[pos++];
+        int value;
+        if (name == 'r') {
+            value = REST;
+        } else {
+            if ("abcdefgABCDEFG".indexOf(name) < 0) {
+                throw malformed(line, "unknown pitch '" + name + "' in spine " + (voice + 1));
+            }
+            int octaves = 0;
+            while (pos < to && buf[pos] == name) {
+                octaves++;
+                pos++;
+            }
+            value = Character.isLowerCase(name) ? 60 + octaves * 12 : 48 - octaves * 12;
+            value += note(name);
+            for (; pos < to; pos++) {
+                if (buf[pos] == '#') value++;
+                else if (buf[pos] == '-') value--;
+            }
+        }
+
+        pitch[voice][length] = value;
+        ticks[voice][length] = t(dur, dots, voice, line);
     }
 
-    // Private helper method, checks if input is letter.
-    private static boolean isLet(char let) {
-        return ((int) let >= 65 && (int) let <= 90) ||
-                ((int) let >= 97 && (int) let <= 122);
+    // Private helper method, builds the exception reported for a malformed line.
+    private IllegalArgumentException malformed(int line, String message) {
+        return new IllegalArgumentException(fileName + ":" + line + ": " + message);
     }
 
-    // Private helper method, returns index where numbers change to letters (ex. "8D" returns 1, "16C" returns 2, "."
-    // returns 0).
-    private static int splice(String elem) {
-        for (int i = 0; i < elem.length(); i++) {
-            if (isLet(elem.charAt(i))) return i;
-        }
-        return 0;
+    // Alternate constructor method, used for playing generated chords. Takes one pitch and one duration column in
+    // ticks per voice, the arrays are not copied and should not be mutated afterwards.
+    public Kern(int[][] pitch, int[][] ticks) {
+        if (pitch.length != VOICES || ticks.length != VOICES) throw new IllegalArgumentException("Incorrect voices");
+        fileName = "null";
+        view = null;
+        viewOff = 0;
+        stride = 0;
+        this.pitch = pitch;
+        this.ticks = ticks;
+        this.length = pitch[0].length;
+        if (length == 0) phraseCount = 0;
+        phraseStarts = Arrays.copyOf(phraseStarts, phraseCount);
     }
 
-    // Private helper method, changes .krn time value to jMusic adjusted time value.
-    private static double t(double raw) {
-        return 4. / raw;
+    // Private constructor, a view of length chords in the columns of a KernCorpus. Each column holds stride ints, the
+    // four pitch columns as written come first, then the four with rests filled in, then the four duration columns.
+    private Kern(String fileName, IntBuffer columns, int off, int stride, int length, int[] phraseStarts) {
+        this.fileName = fileName;
+        view = columns;
+        viewOff = off;
+        this.stride = stride;
+        this.length = length;
+        this.phraseStarts = phraseStarts;
+        phraseCount = phraseStarts.length;
     }
 
-    // Private helper method, dotted time values.
-    private static double dt(double raw) {
-        return t(raw) * 1.5;
+    // Returns a view of the chorale of length chords at off in the corpus columns, see the private constructor.
+    static Kern view(String fileName, IntBuffer columns, int off, int stride, int length, int[] phraseStarts) {
+        return new Kern(fileName, columns, off, stride, length, phraseStarts);
     }
 
-    // Private helper method, changes .krn pitch values to jMusic adjusted pitch values.
-    private static int pitch(String name) {
-        if (name.charAt(0) == 'r') return -2147483648;
-        int temp = 0;
-        for (int i = 1; i < name.length(); i++) {
-            if (name.charAt(i) == name.charAt(0)) {
-                temp++;
+    // Returns the number of chords.
+    public int length() {
+        return length;
+    }
+
+    // Returns the index of the first chord of each phrase in order, starting with 0. Phrases end at fermatas, a
+    // generated piece is a single phrase.
+    public int[] phraseStarts() {
+        return phraseStarts.clone();
+    }
+
+    // Returns the pitch of chord i in voice, with rests (and held notes) replaced by the note before them.
+    public int getPitch(int voice, int i) {
+        if (view != null) return view.get(viewOff + (VOICES + voice) * stride + i);
+        int[][] res = filled;
+        if (res == null) {
+            res = new int[VOICES][];
+            for (int v = 0; v < VOICES; v++) {
+                res[v] = new int[length];
+                int lastPitch = length > 0 ? pitch[v][0] : 0;
+                for (int j = 0; j < length; j++) {
+                    if (pitch[v][j] > 0) lastPitch = pitch[v][j];
+                    res[v][j] = lastPitch;
+                }
             }
+            filled = res;
         }
-        int pitch;
-        if (Character.isLowerCase(name.charAt(0))) {
-            pitch = 60;
-            pitch += temp * 12;
-        } else {
-            pitch = 48;
-            pitch -= temp * 12;
+        return res[voice][i];
+    }
+
+    // Returns the duration in ticks of chord i in voice, 0 where the previous note is held.
+    public int getTicks(int voice, int i) {
+        if (view != null) return view.get(viewOff + (2 * VOICES + voice) * stride + i);
+        return ticks[voice][i];
+    }
+
+    // Returns the pitch of chord i in voice as written, 0 where the previous note is held and Integer.MIN_VALUE for
+    // rests.
+    public int getRawPitch(int voice, int i) {
+        if (view != null) return view.get(viewOff + voice * stride + i);
+        return pitch[voice][i];
+    }
+
+    // Private helper method, changes a .krn duration with dots to ticks. Each dot adds half of the previous value, and
+    // a duration of 0 is a breve. Durations that fall between ticks are rejected rather than rounded.
+    private int t(int raw, int dots, int voice, int line) {
+        long base = raw == 0 ? 8 * TICKS : 4 * TICKS / raw;
+        long dotted = base * ((2L << dots) - 1);
+        if ((raw != 0 && 4 * TICKS % raw != 0) || dots > 8 || dotted % (1L << dots) != 0) {
+            throw malformed(line, "duration off the tick grid in spine " + (voice + 1));
         }
-        pitch += note(name.charAt(0));
-        if (name.charAt(name.length() - 1) == '#') pitch++;
-        if (name.charAt(name.length() - 1) == '-') pitch--;
-        return pitch;
+        return (int) (dotted >> dots);
     }
 
     // Private helper method, note name to value correlation.
@@ -183,7 +287,6 @@ public class Kern {
         if (note == 'g' || note == 'G') return 7;
         if (note == 'a' || note == 'A') return 9;
         if (note == 'b' || note == 'B') return 11;
-        if (note == 'r') return -2147483648;
         throw new IllegalArgumentException("Not a Note");
     }
 
@@ -194,9 +297,9 @@ public class Kern {
             phrases[i] = new Phrase();
             phrases[i].setInstrument(ins);
 
-            for (int j = 0; j < pitch.get(i).size(); j++) {
-                if (pitch.get(i).get(j) != 0 && times.get(i).get(j) != 0) {
-                    phrases[i].add(new Note(pitch.get(i).get(j), times.get(i).get(j)));
+            for (int j = 0; j < length; j++) {
+                if (getRawPitch(i, j) != 0 && getTicks(i, j) != 0) {
+                    phrases[i].add(new Note(getRawPitch(i, j), (double) getTicks(i, j) / TICKS));
                 }
             }
         }
@@ -207,6 +310,22 @@ public class Kern {
         return result;
     }
 
+    // Writes the Kern file to out as a Standard MIDI File, instrument and tempo in beats per minute given by argument,
+    // then closes out. Writes the same notes and rests as getScore() without building a Score.
+    public void writeMidi(OutputStream out, int ins, double tempo) throws IOException {
+        int[] chordPitch = new int[VOICES];
+        int[] chordTicks = new int[VOICES];
+        try (MidiWriter writer = new MidiWriter(out, ins, tempo, false)) {
+            for (int j = 0; j < length; j++) {
+                for (int i = 0; i < VOICES; i++) {
+                    chordPitch[i] = getRawPitch(i, j);
+                    chordTicks[i] = chordPitch[i] != 0 ? getTicks(i, j) : 0;
+                }
+                writer.add(chordPitch, chordTicks);
+            }
+        }
+    }
+
     // Tests all class methods. Command line input file name.
     public static void main(String[] args) {
         Kern testChorale = new Kern(args[0]);
@@ -215,14 +334,17 @@ public class Kern {
         StdOut.println(testChorale.getFileName());
         StdOut.println();
 
+        // Test getTicks
         for (int i = 0; i < VOICES; i++) {
-            StdOut.println(testChorale.getTimes().get(i).toString());
+            for (int j = 0; j < testChorale.length(); j++) StdOut.print(testChorale.getTicks(i, j) + " ");
+            StdOut.println();
         }
         StdOut.println();
 
-        // Test toString
+        // Test getPitch
         for (int i = 0; i < VOICES; i++) {
-            StdOut.println(testChorale.getPitch().get(i).toString());
+            for (int j = 0; j < testChorale.length(); j++) StdOut.print(testChorale.getPitch(i, j) + " ");
+            StdOut.println();
         }
 
         // Test getScore
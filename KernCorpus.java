@@ -0,0 +1,235 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// KernCorpus is a set of chorales parsed once and compiled into one binary file, so retraining does not read and
+// parse .krn text again. Every chorale is the same twelve columns a parsed Kern holds, four pitch columns as written,
+// four with rests filled in and four of durations in ticks, and the corpus stores each column of every chorale back
+// to back. An offset table gives each chorale's first chord. The file is memory-mapped, and each chorale is handed
+// out as a Kern viewing its stretch of the columns, which pages are read in for on first use.
+//
+// File format, all ints big-endian:
+//   header   MAGIC, VERSION, ticks per beat, chorales, chords, phrases, name bytes
+//   first    [chorales + 1]      first chord of each chorale, with chords at the end
+//   phrase   [chorales + 1]      first phrase of each chorale, with phrases at the end
+//   starts   [phrases]           first chord of each phrase, counted from the start of its chorale
+//   columns  [12 * chords]       pitch as written, pitch with rests filled in and ticks, of each voice in turn
+//   nameOff  [chorales + 1]      first byte of each file name, with name bytes at the end
+//   names    [name bytes]        file names, UTF-8
+public final class KernCorpus {
+
+    private static final int MAGIC = 0x42424b52; // "BBKR"
+    private static final int VERSION = 1;
+    private static final int VOICES = 4;
+    private static final int COLUMNS = 3 * VOICES;
+    private static final int HEADER = 7; // Ints of the header.
+
+    private final IntBuffer data; // The whole file from the first table on.
+    private final int chorales; // Number of chorales.
+    private final int chords; // Number of chords of all chorales.
+    private final int phraseOff; // Position of the phrase table.
+    private final int startsOff; // Position of the phrase starts.
+    private final int columnsOff; // Position of the first column.
+    private final String[] names; // File name of each chorale.
+
+    // Private constructor, wraps the mapped file.
+    private KernCorpus(ByteBuffer map) {
+        IntBuffer buf = map.asIntBuffer();
+        if (buf.get(0) != MAGIC) throw new IllegalArgumentException("Not a BachBot corpus");
+        if (buf.get(1) != VERSION) throw new IllegalArgumentException("Unsupported corpus version");
+        if (buf.get(2) != Kern.TICKS) throw new IllegalArgumentException("Incompatible corpus time grid");
+        chorales = buf.get(3);
+        chords = buf.get(4);
+        int phrases = buf.get(5);
+        int nameBytes = buf.get(6);
+        long size = HEADER + 3L * (chorales + 1) + phrases + (long) COLUMNS * chords;
+        if (chorales < 0 || chords < 0 || phrases < 0 || nameBytes < 0 || size * 4 + nameBytes != map.limit()) {
+            throw new IllegalArgumentException("Corrupt corpus");
+        }
+        buf.position(HEADER);
+        data = buf.slice();
+        phraseOff = chorales + 1;
+        startsOff = phraseOff + chorales + 1;
+        columnsOff = startsOff + phrases;
+        if (data.get(chorales) != chords || data.get(phraseOff + chorales) != phrases) {
+            throw new IllegalArgumentException("Corrupt corpus");
+        }
+
+        // Names are read up front, everything else on use
+        int nameOff = columnsOff + COLUMNS * chords;
+        names = new String[chorales];
+        for (int c = 0; c < chorales; c++) {
+            int from = data.get(nameOff + c);
+            byte[] name = new byte[data.get(nameOff + c + 1) - from];
+            ByteBuffer bytes = map.duplicate();
+            bytes.position((int) size * 4 + from);
+            bytes.get(name);
+            names[c] = new String(name, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Parses every chorale in files and writes them to out as one corpus, in order.
+    public static void compile(List<Path> files, Path out) throws IOException {
+        List<Kern> parsed = new ArrayList<>();
+        long chords = 0;
+        int phrases = 0;
+        for (Path p : files) {
+            Kern k = new Kern(p.toString());
+            parsed.add(k);
+            chords += k.length();
+            phrases += k.phraseStarts().length;
+        }
+        if (chords * COLUMNS > Integer.MAX_VALUE / 4) throw new IllegalArgumentException("Corpus too large");
+        byte[][] names = new byte[parsed.size()][];
+        int nameBytes = 0;
+        for (int c = 0; c < names.length; c++) {
+            names[c] = parsed.get(c).getFileName().getBytes(StandardCharsets.UTF_8);
+            nameBytes += names[c].length;
+        }
+
+        try (DataOutputStream o = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(out), 1 << 16))) {
+            int[] header = {MAGIC, VERSION, Kern.TICKS, parsed.size(), (int) chords, phrases, nameBytes};
+            for (int h : header) o.writeInt(h);
+            int first = 0;
+            for (Kern k : parsed) {
+                o.writeInt(first);
+                first += k.length();
+            }
+            o.writeInt(first);
+            int phrase = 0;
+            for (Kern k : parsed) {
+                o.writeInt(phrase);
+                phrase += k.phraseStarts().length;
+            }
+            o.writeInt(phrase);
+            for (Kern k : parsed) for (int start : k.phraseStarts()) o.writeInt(start);
+            for (int v = 0; v < VOICES; v++) {
+                for (Kern k : parsed) for (int i = 0; i < k.length(); i++) o.writeInt(k.getRawPitch(v, i));
+            }
+            for (int v = 0; v < VOICES; v++) {
+                for (Kern k : parsed) for (int i = 0; i < k.length(); i++) o.writeInt(k.getPitch(v, i));
+            }
+            for (int v = 0; v < VOICES; v++) {
+                for (Kern k : parsed) for (int i = 0; i < k.length(); i++) o.writeInt(k.getTicks(v, i));
+            }
+            int name = 0;
+            for (byte[] n : names) {
+                o.writeInt(name);
+                name += n.length;
+            }
+            o.writeInt(name);
+            for (byte[] n : names) o.write(n);
+        }
+    }
+
+    // Maps the corpus file at path. Only the header and file names are read up front.
+    public static KernCorpus open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IllegalArgumentException("Corpus file too large");
+            return new KernCorpus(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Returns the corpus at path, compiling it from files first if the file does not exist.
+    public static KernCorpus openOrCompile(Path path, List<Path> files) throws IOException {
+        if (!Files.exists(path)) compile(files, path);
+        return open(path);
+    }
+
+    // Returns the number of chorales.
+    public int size() {
+        return chorales;
+    }
+
+    // Returns the file name of chorale c.
+    public String name(int c) {
+        return names[c];
+    }
+
+    // Returns a view of chorale c. Views share the mapped file and copy nothing but the phrase starts.
+    public Kern get(int c) {
+        int first = data.get(c);
+        int[] starts = new int[data.get(phraseOff + c + 1) - data.get(phraseOff + c)];
+        for (int i = 0; i < starts.length; i++) starts[i] = data.get(startsOff + data.get(phraseOff + c) + i);
+        return Kern.view(names[c], data, columnsOff + first, chords, data.get(c + 1) - first, starts);
+    }
+
+    // Returns every chorale in order, each viewed on access.
+    public List<Kern> chorales() {
+        return new AbstractList<Kern>() {
+            @Override
+            public Kern get(int c) {
+                return KernCorpus.this.get(c);
+            }
+
+            @Override
+            public int size() {
+                return chorales;
+            }
+        };
+    }
+
+    // Compiles the chorales to the file named by the first command line argument and checks every chorale read back
+    // from it against the parsed .krn file: name, length, phrase starts, and every pitch as written, pitch with rests
+    // filled in and duration. Then times training a model of the K-Gram length given by the second argument from the
+    // corpus and from the .krn files, and checks both models hold the same K-Grams.
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            StdOut.println("usage: java KernCorpus <corpus file> <kLen>");
+            return;
+        }
+        Path path = Paths.get(args[0]);
+        int kLen = Integer.parseInt(args[1]);
+        List<Path> files = BachBot.chorales();
+        long start = System.nanoTime();
+        compile(files, path);
+        StdOut.printf("compiled in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+
+        KernCorpus corpus = open(path);
+        SelfCheck.that(corpus.size() == files.size(), "number of chorales");
+        long chords = 0;
+        for (int c = 0; c < files.size(); c++) {
+            Kern view = corpus.get(c);
+            Kern parsed = new Kern(files.get(c).toString());
+            String where = "chorale " + parsed.getFileName();
+            String name = parsed.getFileName();
+            SelfCheck.that(view.getFileName().equals(name) && corpus.name(c).equals(name), "name of " + where);
+            SelfCheck.that(view.length() == parsed.length(), "length of " + where);
+            SelfCheck.that(Arrays.equals(view.phraseStarts(), parsed.phraseStarts()), "phrase starts of " + where);
+            for (int v = 0; v < VOICES; v++) {
+                for (int i = 0; i < parsed.length(); i++) {
+                    String at = where + " at " + i;
+                    SelfCheck.that(view.getRawPitch(v, i) == parsed.getRawPitch(v, i), "pitch of " + at);
+                    SelfCheck.that(view.getPitch(v, i) == parsed.getPitch(v, i), "filled pitch of " + at);
+                    SelfCheck.that(view.getTicks(v, i) == parsed.getTicks(v, i), "ticks of " + at);
+                }
+            }
+            chords += parsed.length();
+        }
+        StdOut.println(corpus.size() + " chorales of " + chords + " chords read back unchanged");
+
+        start = System.nanoTime();
+        BachBot cached = new BachBot(kLen);
+        cached.addAll(corpus, 1);
+        StdOut.printf("%d chorales from the corpus in %.1f ms%n", corpus.size(), (System.nanoTime() - start) / 1e6);
+
+        start = System.nanoTime();
+        BachBot parsed = new BachBot(kLen);
+        parsed.addAll(files, 1);
+        StdOut.printf("%d chorales from .krn files in %.1f ms%n", corpus.size(), (System.nanoTime() - start) / 1e6);
+        SelfCheck.that(cached.chordST.size() == parsed.chordST.size()
+                && cached.chordST.successors() == parsed.chordST.successors(), "K-Grams of the trained models");
+    }
+}
@@ -0,0 +1,74 @@
+// LongIntMap is an open-addressing hash table from long keys to non-negative int values, used for the edges and
+// successor counts of ContextTrie, where a key packs two ints. Keys and values sit in parallel primitive arrays, so
+// entries cost no objects.
+public class LongIntMap {
+
+    private long[] keys; // Key of each used slot.
+    private int[] vals; // Value + 1 of each used slot, 0 when empty.
+    private int size; // Number of entries.
+
+    public LongIntMap() {
+        keys = new long[32];
+        vals = new int[32];
+    }
+
+    // Packs two ints into one key.
+    public static long key(int hi, int lo) {
+        return ((long) hi << 32) | (lo & 0xFFFFFFFFL);
+    }
+
+    // Private helper method, slot of key for the given mask.
+    private static int slot(long key, int mask) {
+        return KGram.mix((int) (key ^ (key >>> 32)) * 0x9E3779B1) & mask;
+    }
+
+    // Returns the estimated heap taken by the table in bytes.
+    public long estimatedBytes() {
+        return keys.length * 12L;
+    }
+
+    // Returns the number of entries.
+    public int size() {
+        return size;
+    }
+
+    // Returns the value of key, -1 if absent.
+    public int get(long key) {
+        int mask = keys.length - 1;
+        for (int s = slot(key, mask); vals[s] != 0; s = (s + 1) & mask) {
+            if (keys[s] == key) return vals[s] - 1;
+        }
+        return -1;
+    }
+
+    // Associates val with key, replacing the old value if the key is already present.
+    public void put(long key, int val) {
+        if (val < 0) throw new IllegalArgumentException("Negative value");
+        int mask = keys.length - 1;
+        int s = slot(key, mask);
+        for (; vals[s] != 0; s = (s + 1) & mask) {
+            if (keys[s] == key) {
+                vals[s] = val + 1;
+                return;
+            }
+        }
+        keys[s] = key;
+        vals[s] = val + 1;
+
+        // Keep the table at most half full
+        if (++size * 2 > keys.length) {
+            long[] oldKeys = keys;
+            int[] oldVals = vals;
+            keys = new long[oldKeys.length * 2];
+            vals = new int[oldVals.length * 2];
+            mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldVals[i] == 0) continue;
+                int t = slot(oldKeys[i], mask);
+                while (vals[t] != 0) t = (t + 1) & mask;
+                keys[t] = oldKeys[i];
+                vals[t] = oldVals[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.BiConsumer;
+
+// MidiWriter writes four-part chords straight into a Standard MIDI File, format 1 with one track per voice, without
+// building a jMusic Score. Chords are encoded into note events as they are added. A track chunk has to be complete
+// before the next one starts, so the tracks are kept as encoded bytes until close() writes the file to the output
+// stream. In memory that is a few bytes per note; an unbounded writer spills the tracks to temporary files instead, so
+// pieces of any length take constant memory, see BachBot.stream(). Whole pieces are written by Kern.writeMidi().
+//
+// Durations are in ticks, Kern.TICKS per beat, which is also the file's division. A chord with a duration of 0 holds
+// the previous note of that voice, and rests and pitches outside the MIDI range are written as silence.
+public class MidiWriter implements Closeable, BiConsumer<int[], int[]> {
+
+    private static final int VOICES = 4;
+    private static final int VELOCITY = 80;
+
+    private final OutputStream out; // Destination of the file.
+    private final Track[] tracks = new Track[VOICES];
+    private boolean closed;
+
+    // Encoded events of one voice, with the time since its last event.
+    private static class Track {
+        private final OutputStream events; // Encoded events, in memory or in file.
+        private final ByteArrayOutputStream memory; // Events kept in memory, null when spilled to file.
+        private final File file; // Events spilled to a temporary file, null when kept in memory.
+        private long length; // Bytes of events written.
+        private long delta; // Ticks since the last event.
+
+        private Track(boolean unbounded) throws IOException {
+            if (unbounded) {
+                memory = null;
+                file = File.createTempFile("bachbot-track", ".mid");
+                file.deleteOnExit();
+                events = new BufferedOutputStream(new FileOutputStream(file));
+            } else {
+                memory = new ByteArrayOutputStream();
+                file = null;
+                events = memory;
+            }
+        }
+
+        // Writes a variable-length quantity, 7 bits per byte from the highest, with the high bit set on all but the
+        // last. MIDI allows at most four bytes.
+        private void writeVarLen(long value) throws IOException {
+            if (value > 0x0FFFFFFF) throw new IOException("MIDI delta time too long");
+            int bytes = 1;
+            for (long rest = value >>> 7; rest != 0; rest >>>= 7) bytes++;
+            for (int i = bytes - 1; i > 0; i--) write((int) (value >>> (7 * i)) & 0x7F | 0x80);
+            write((int) value & 0x7F);
+        }
+
+        // Writes one byte.
+        private void write(int b) throws IOException {
+            events.write(b);
+            length++;
+        }
+
+        // Writes an event after the time since the last one.
+        private void event(int status, int data1, int data2) throws IOException {
+            writeVarLen(delta);
+            delta = 0;
+            write(status);
+            write(data1);
+            write(data2);
+        }
+
+        // Writes a meta event after the time since the last one.
+        private void meta(int type, byte[] data) throws IOException {
+            writeVarLen(delta);
+            delta = 0;
+            write(0xFF);
+            write(type);
+            writeVarLen(data.length);
+            for (byte b : data) write(b & 0xFF);
+        }
+
+        // Copies the finished track chunk to out and frees its storage.
+        private void copyTo(OutputStream out) throws IOException {
+            if (length > 0xFFFFFFFFL) throw new IOException("MIDI track too long");
+            out.write(new byte[]{'M', 'T', 'r', 'k'});
+            writeInt(out, (int) length);
+            if (memory != null) {
+                memory.writeTo(out);
+                return;
+            }
+            events.close();
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                byte[] chunk = new byte[8192];
+                for (int n = in.read(chunk); n > 0; n = in.read(chunk)) out.write(chunk, 0, n);
+            }
+        }
+
+        // Frees the storage of the track.
+        private void discard() throws IOException {
+            events.close();
+            if (file != null && !file.delete()) file.deleteOnExit();
+        }
+    }
+
+    // Constructor, writes a file to out playing every voice on the given General MIDI instrument at tempo beats per
+    // minute. An unbounded writer spills its tracks to temporary files rather than keeping them in memory.
+    public MidiWriter(OutputStream out, int instrument, double tempo, boolean unbounded) throws IOException {
+        if (instrument < 0 || instrument > 127) throw new IllegalArgumentException("Instrument out of MIDI range");
+        if (tempo <= 0) throw new IllegalArgumentException("Tempo must be positive");
+        this.out = out;
+        try {
+            for (int v = 0; v < VOICES; v++) tracks[v] = new Track(unbounded);
+        } catch (IOException e) {
+            for (Track t : tracks) if (t != null) t.discard();
+            throw e;
+        }
+
+        // Tempo goes in the first track, as format 1 expects
+        int micros = (int) Math.round(60000000 / tempo);
+        tracks[0].meta(0x51, new byte[]{(byte) (micros >> 16), (byte) (micros >> 8), (byte) micros});
+        String[] names = {"Bass", "Tenor", "Alto", "Soprano"}; // Voices are in spine order, bass first.
+        for (int v = 0; v < VOICES; v++) {
+            tracks[v].meta(0x03, names[v].getBytes("US-ASCII"));
+            tracks[v].writeVarLen(0);
+            tracks[v].write(0xC0 | v);
+            tracks[v].write(instrument);
+        }
+    }
+
+    // Adds one chord, the pitch and duration in ticks of each voice. The arrays are not kept.
+    public void add(int[] pitch, int[] ticks) throws IOException {
+        if (closed) throw new IllegalStateException("MIDI writer closed");
+        for (int v = 0; v < VOICES; v++) {
+            if (ticks[v] == 0) continue;
+            Track t = tracks[v];
+            if (pitch[v] < 0 || pitch[v] > 127) {
+                t.delta += ticks[v];
+                continue;
+            }
+            t.event(0x90 | v, pitch[v], VELOCITY);
+            t.delta = ticks[v];
+            t.event(0x80 | v, pitch[v], 0);
+        }
+    }
+
+    // Adds one chord as add(), so a writer can be handed to BachBot.stream(). Write errors are rethrown unchecked.
+    @Override
+    public void accept(int[] pitch, int[] ticks) {
+        try {
+            add(pitch, ticks);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write MIDI", e);
+        }
+    }
+
+    // Ends every track and writes the file to out, then closes out.
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            for (Track t : tracks) t.meta(0x2F, new byte[0]);
+            out.write(new byte[]{'M', 'T', 'h', 'd'});
+            writeInt(out, 6);
+            out.write(new byte[]{0, 1, 0, VOICES, (byte) (Kern.TICKS >> 8), (byte) Kern.TICKS});
+            for (Track t : tracks) t.copyTo(out);
+        } finally {
+            for (Track t : tracks) t.discard();
+            out.close();
+        }
+    }
+
+    // Private helper method, writes a big-endian int.
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value});
+    }
+
+    // Tests class methods, command line input .krn file and output .mid file.
+    public static void main(String[] args) throws IOException {
+        Kern chorale = new Kern(args[0]);
+        chorale.writeMidi(new FileOutputStream(args[1]), 6, 80);
+        StdOut.println("Wrote " + chorale.length() + " chords to " + args[1]);
+    }
+}
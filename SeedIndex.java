@@ -0,0 +1,245 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+// SeedIndex holds the initial K-Grams generation can start from: the first kLen chords of every chorale trained on,
+// and of every phrase in it, taken in absolute pitches and ticks. The chords of all seeds are kept back to back in two
+// flat columns, kLen chords of four voices per seed, so starting a piece is an array copy rather than reading and
+// parsing a .krn file. Like training, a seed near the end of a chorale wraps around to its first chords.
+//
+// Seeds are grouped by chorale in the order chorales were added, the first seed of each being the chorale's start. An
+// index is built under BachBot's training lock and published as a copy() alongside the model view.
+//
+// File format, all ints big-endian:
+//   header   MAGIC, VERSION, kLen, seeds, chorales
+//   first    [chorales + 1]                  first seed of each chorale
+//   pitch    [seeds * kLen * 4]              pitch of each voice of each chord of each seed
+//   ticks    [seeds * kLen * 4]              duration in ticks of each voice of each chord of each seed
+//   names    [chorales]                      file name of each chorale, modified UTF-8
+public class SeedIndex {
+
+    private static final int MAGIC = 0x42425344; // "BBSD"
+    private static final int VERSION = 1;
+    private static final int VOICES = 4;
+
+    private final int kLen; // Chords per seed.
+    private int[] pitch; // Chords of each seed, kLen * VOICES pitches each.
+    private int[] ticks; // Chords of each seed, kLen * VOICES durations each.
+    private int seeds; // Number of seeds.
+    private int[] first; // First seed of each chorale, with seeds at the end.
+    private String[] names; // File name of each chorale.
+    private int chorales; // Number of chorales.
+    private final Map<String, Integer> byName = new HashMap<>(); // Chorale of each file name, the first if repeated.
+
+    public SeedIndex(int kLen) {
+        if (kLen < 1) throw new IllegalArgumentException("K-Gram length must be positive");
+        this.kLen = kLen;
+        pitch = new int[16 * kLen * VOICES];
+        ticks = new int[16 * kLen * VOICES];
+        first = new int[9];
+        names = new String[8];
+    }
+
+    // Adds the seeds of file, its start then the start of each later phrase. Files without chords are skipped.
+    public void add(Kern file) {
+        int n = file.length();
+        if (n == 0) return;
+        int[] starts = file.phraseStarts();
+        growSeeds(starts.length);
+        growChorales(1);
+        for (int start : starts) {
+            int off = seeds * kLen * VOICES;
+            for (int i = 0; i < kLen; i++) {
+                for (int j = 0; j < VOICES; j++) {
+                    pitch[off] = file.getPitch(j, (start + i) % n);
+                    ticks[off++] = file.getTicks(j, (start + i) % n);
+                }
+            }
+            seeds++;
+        }
+        byName.putIfAbsent(file.getFileName(), chorales);
+        names[chorales++] = file.getFileName();
+        first[chorales] = seeds;
+    }
+
+    // Adds every seed of other after the seeds of this index, keeping other's chorale order.
+    public void addAll(SeedIndex other) {
+        if (other.kLen != kLen) throw new IllegalArgumentException("Incorrect K-Gram Length");
+        growSeeds(other.seeds);
+        growChorales(other.chorales);
+        int width = kLen * VOICES;
+        System.arraycopy(other.pitch, 0, pitch, seeds * width, other.seeds * width);
+        System.arraycopy(other.ticks, 0, ticks, seeds * width, other.seeds * width);
+        for (int c = 0; c < other.chorales; c++) {
+            byName.putIfAbsent(other.names[c], chorales);
+            names[chorales++] = other.names[c];
+            first[chorales] = seeds + other.first[c + 1];
+        }
+        seeds += other.seeds;
+    }
+
+    // Private helper method, makes room for more seeds.
+    private void growSeeds(int more) {
+        int width = kLen * VOICES;
+        if ((long) (seeds + more) * width > Integer.MAX_VALUE) throw new IllegalStateException("Seed index too large");
+        if ((seeds + more) * width > pitch.length) {
+            int capacity = Math.max(seeds + more, Math.min(seeds * 2, Integer.MAX_VALUE / width));
+            pitch = Arrays.copyOf(pitch, capacity * width);
+            ticks = Arrays.copyOf(ticks, capacity * width);
+        }
+    }
+
+    // Private helper method, makes room for more chorales.
+    private void growChorales(int more) {
+        if (chorales + more > names.length) {
+            names = Arrays.copyOf(names, Math.max(chorales + more, chorales * 2));
+            first = Arrays.copyOf(first, names.length + 1);
+        }
+    }
+
+    // Returns a copy of this index that later adds do not change.
+    public SeedIndex copy() {
+        SeedIndex res = new SeedIndex(kLen);
+        res.addAll(this);
+        return res;
+    }
+
+    // Returns the number of chords per seed.
+    public int kLen() {
+        return kLen;
+    }
+
+    // Returns the number of seeds, chorale starts and phrase starts.
+    public int size() {
+        return seeds;
+    }
+
+    // Returns the number of chorales.
+    public int chorales() {
+        return chorales;
+    }
+
+    // Returns the file name of chorale c.
+    public String name(int c) {
+        return names[c];
+    }
+
+    // Returns the seed of the start of the named chorale, -1 if it was not added.
+    public int find(String name) {
+        Integer c = byName.get(name);
+        return c == null ? -1 : first[c];
+    }
+
+    // Returns the start of a chorale drawn uniformly from random.
+    public int sample(SplittableRandom random) {
+        if (chorales == 0) throw new IllegalStateException("No chorales to start from");
+        return first[random.nextInt(chorales)];
+    }
+
+    // Returns the start of a phrase of any chorale drawn uniformly from random.
+    public int samplePhrase(SplittableRandom random) {
+        if (seeds == 0) throw new IllegalStateException("No chorales to start from");
+        return random.nextInt(seeds);
+    }
+
+    // Returns the pitch of voice in chord i of seed.
+    public int pitch(int seed, int i, int voice) {
+        return pitch[(seed * kLen + i) * VOICES + voice];
+    }
+
+    // Returns the duration in ticks of voice in chord i of seed.
+    public int ticks(int seed, int i, int voice) {
+        return ticks[(seed * kLen + i) * VOICES + voice];
+    }
+
+    // Saves the index to path, see the class comment for the format.
+    public void save(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            int[] header = {MAGIC, VERSION, kLen, seeds, chorales};
+            for (int h : header) out.writeInt(h);
+            for (int c = 0; c <= chorales; c++) out.writeInt(first[c]);
+            for (int i = 0; i < seeds * kLen * VOICES; i++) out.writeInt(pitch[i]);
+            for (int i = 0; i < seeds * kLen * VOICES; i++) out.writeInt(ticks[i]);
+            for (int c = 0; c < chorales; c++) out.writeUTF(names[c]);
+        }
+    }
+
+    // Loads an index saved by save().
+    public static SeedIndex load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) throw new IllegalArgumentException("Not a BachBot seed index");
+            if (in.readInt() != VERSION) throw new IllegalArgumentException("Unsupported seed index version");
+            SeedIndex res = new SeedIndex(in.readInt());
+            int seeds = in.readInt();
+            int chorales = in.readInt();
+            if (seeds < 0 || chorales < 0) throw new IllegalArgumentException("Corrupt seed index");
+            res.growSeeds(seeds);
+            res.growChorales(chorales);
+            for (int c = 0; c <= chorales; c++) res.first[c] = in.readInt();
+            if (res.first[0] != 0 || res.first[chorales] != seeds) {
+                throw new IllegalArgumentException("Corrupt seed index");
+            }
+            for (int i = 0; i < seeds * res.kLen * VOICES; i++) res.pitch[i] = in.readInt();
+            for (int i = 0; i < seeds * res.kLen * VOICES; i++) res.ticks[i] = in.readInt();
+            for (int c = 0; c < chorales; c++) {
+                res.names[c] = in.readUTF();
+                res.byName.putIfAbsent(res.names[c], c);
+            }
+            res.seeds = seeds;
+            res.chorales = chorales;
+            return res;
+        }
+    }
+
+    // Checks an index of every chorale saved and loaded back against the chorales, command line input K-Gram length:
+    // every seed, name and phrase start must survive the round trip.
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            StdOut.println("usage: java SeedIndex <kLen>");
+            return;
+        }
+        int kLen = Integer.parseInt(args[0]);
+        SeedIndex index = new SeedIndex(kLen);
+        List<Kern> chorales = new ArrayList<>();
+        for (Path p : BachBot.chorales()) chorales.add(new Kern(p.toString()));
+        for (Kern k : chorales) index.add(k);
+        Path file = Files.createTempFile("chorales", ".seeds");
+        try {
+            index.save(file);
+            SeedIndex loaded = load(file);
+            SelfCheck.that(loaded.kLen() == kLen && loaded.size() == index.size(), "sizes");
+            SelfCheck.that(loaded.chorales() == chorales.size(), "chorales");
+            for (int c = 0; c < chorales.size(); c++) {
+                Kern k = chorales.get(c);
+                int n = k.length();
+                SelfCheck.that(loaded.name(c).equals(k.getFileName()), "name of chorale " + c);
+                int seed = loaded.find(k.getFileName());
+                SelfCheck.that(seed >= 0, "find of chorale " + c);
+                for (int start : k.phraseStarts()) {
+                    for (int i = 0; i < kLen; i++) {
+                        int at = (start + i) % n;
+                        for (int v = 0; v < VOICES; v++) {
+                            SelfCheck.that(loaded.pitch(seed, i, v) == k.getPitch(v, at), "pitch of " + seed);
+                            SelfCheck.that(loaded.ticks(seed, i, v) == k.getTicks(v, at), "ticks of " + seed);
+                        }
+                    }
+                    seed++;
+                }
+            }
+            SelfCheck.that(loaded.find("missing.krn") == -1, "find of a missing chorale");
+            StdOut.println(loaded.size() + " seeds of " + loaded.chorales() + " chorales round-trip");
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
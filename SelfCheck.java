@@ -0,0 +1,13 @@
+// SelfCheck is the assertion the main() checks of the model classes share, so a failed check reads the same whichever
+// class ran it. Checks stop at the first claim that does not hold.
+public final class SelfCheck {
+
+    // Private constructor, SelfCheck only has static helpers.
+    private SelfCheck() {
+    }
+
+    // Throws with message unless ok.
+    public static void that(boolean ok, String message) {
+        if (!ok) throw new IllegalStateException("Check failed: " + message);
+    }
+}
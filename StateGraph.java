@@ -0,0 +1,136 @@
+import java.util.SplittableRandom;
+
+// StateGraph is a ChordSnapshot compiled for generation. Every K-Gram of the snapshot is a state, numbered as its
+// entry, and every successor of a state is an edge to the state generation moves to after taking it: the longest
+// seen suffix of the K-Gram with the successor's chord appended. A chord is packed as the intervals between its
+// voices, which pitch changes alter and octave corrections do not, so the appended chord and hence the next state
+// only depend on the state and the successor. Generating is then a walk over int arrays, with no key packing, hashing
+// or probing after the first K-Gram.
+//
+// States and edges are kept in compressed sparse rows: the edges of state e are first[e] up to first[e + 1], each with
+// its alias table column, the state it leads to, and the id of its pitch changes and durations. Training wraps around
+// each chorale, so a K-Gram without its newest chord was always seen as well, and the longest seen suffix found from
+// the state alone is the one a lookup of the whole window would find.
+public final class StateGraph {
+
+    private static final int WIDTH = KGram.CHORD_WIDTH;
+    private static final int VOICES = 4;
+
+    private final int kLen; // Longest K-Gram length.
+    private final int[] first; // First edge of each state, with edges at the end.
+    private final int[] totals; // Total occurrences of each state.
+    private final int[] orders; // Number of chords of each state.
+    private final int[] prob; // Alias acceptance threshold of each edge.
+    private final int[] alias; // Alias fallback edge of each edge.
+    private final int[] next; // State each edge leads to, -1 if no suffix was seen.
+    private final int[] values; // Successor id of each edge.
+    private final int[] changes; // Pitch changes of each successor id, VOICES each.
+    private final int[] ticks; // Durations in ticks of each successor id, VOICES each.
+
+    // Compiles snapshot, looking up the state each edge leads to.
+    public StateGraph(ChordSnapshot snapshot) {
+        kLen = snapshot.kLen();
+        int keys = snapshot.size();
+        int edges = snapshot.successors();
+        first = new int[keys + 1];
+        totals = new int[keys];
+        orders = new int[keys];
+        prob = new int[edges];
+        alias = new int[edges];
+        next = new int[edges];
+        values = new int[edges];
+        changes = new int[snapshot.valueCount() * VOICES];
+        ticks = new int[snapshot.valueCount() * VOICES];
+
+        int[] packed = new int[(kLen + 1) * WIDTH]; // Chords of the state followed by the appended chord.
+        int[] hashes = new int[kLen + 1]; // Chord hash of each chord in packed.
+        for (int e = 0; e < keys; e++) {
+            first[e + 1] = snapshot.first(e + 1);
+            totals[e] = snapshot.total(e);
+            int order = snapshot.order(e);
+            orders[e] = order;
+
+            // Unpack the state oldest chord first, the newest chord is the last of its chain of suffixes
+            int c = 0;
+            for (int s = e; s >= 0; s = snapshot.parent(s), c++) {
+                for (int j = 0; j < WIDTH; j++) packed[c * WIDTH + j] = snapshot.chord(s, j);
+                hashes[c] = KGram.chordHash(packed, c * WIDTH);
+            }
+            int newest = (order - 1) * WIDTH;
+            int appended = order * WIDTH;
+
+            for (int i = snapshot.first(e); i < first[e + 1]; i++) {
+                prob[i] = snapshot.prob(i);
+                alias[i] = first[e] + snapshot.alias(i);
+                int v = snapshot.valueId(i);
+                values[i] = v;
+                for (int j = 0; j < VOICES; j++) {
+                    changes[v * VOICES + j] = snapshot.value(i, j);
+                    ticks[v * VOICES + j] = snapshot.value(i, j + VOICES);
+                }
+
+                // Append the successor's chord: each interval moves by the difference of the changes around it
+                for (int j = 0; j < VOICES - 1; j++) {
+                    packed[appended + j] = packed[newest + j] + changes[v * VOICES + j + 1] - changes[v * VOICES + j];
+                }
+                for (int j = 0; j < VOICES; j++) packed[appended + VOICES - 1 + j] = ticks[v * VOICES + j];
+                hashes[order] = KGram.chordHash(packed, appended);
+                next[i] = longestSuffix(snapshot, packed, hashes, order + 1);
+            }
+        }
+    }
+
+    // Private helper method, returns the entry of the longest seen suffix of the given number of packed chords of at
+    // most kLen chords, -1 if not even the newest chord was seen.
+    private int longestSuffix(ChordSnapshot snapshot, int[] packed, int[] hashes, int chords) {
+        int oldest = Math.max(0, chords - kLen);
+        int hash = KGram.hash(packed, oldest * WIDTH, chords - oldest);
+        for (; oldest < chords; oldest++) {
+            int e = snapshot.find(packed, oldest * WIDTH, chords - oldest, hash);
+            if (e >= 0) return e;
+            hash -= hashes[oldest] * KGram.oldestFactor(chords - oldest);
+        }
+        return -1;
+    }
+
+    // Returns the longest K-Gram length.
+    public int kLen() {
+        return kLen;
+    }
+
+    // Returns the number of chords of state e.
+    public int order(int e) {
+        return orders[e];
+    }
+
+    // Returns an edge of state e sampled by weight, drawing from random the same way newChordST.sample() does.
+    public int sample(int e, SplittableRandom random) {
+        int base = first[e];
+        int total = totals[e];
+        long r = random.nextLong((long) (first[e + 1] - base) * total);
+        int column = base + (int) (r / total);
+        return (int) (r % total) < prob[column] ? column : alias[column];
+    }
+
+    // Returns the state edge s leads to, -1 if no suffix of it was seen.
+    public int next(int s) {
+        return next[s];
+    }
+
+    // Returns the pitch change of edge s in voice.
+    public int change(int s, int voice) {
+        return changes[values[s] * VOICES + voice];
+    }
+
+    // Returns the duration in ticks of edge s in voice.
+    public int ticks(int s, int voice) {
+        return ticks[values[s] * VOICES + voice];
+    }
+
+    // Returns the estimated heap taken by the graph in bytes.
+    public long estimatedBytes() {
+        return (first.length + totals.length + orders.length) * 4L
+                + (prob.length + alias.length + next.length + values.length) * 4L
+                + (changes.length + ticks.length) * 4L;
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.Arrays;
+
+// TupleInterner assigns dense int ids to fixed-width tuples of ints, such as packed chords. Each distinct tuple is
+// stored once, back to back in one array, and ids are handed out in order of first appearance. Lookups probe an
+// open-addressing table of ids straight from a packed array and offset.
+public class TupleInterner {
+
+    private final int width; // Ints per tuple.
+    private int[] data; // Tuples in id order, width ints each.
+    private int[] hashes; // Hash of each tuple.
+    private int[] slots; // Open-addressing table, id + 1 in each used slot, 0 when empty.
+    private int size; // Number of tuples.
+
+    public TupleInterner(int width) {
+        this.width = width;
+        data = new int[16 * width];
+        hashes = new int[16];
+        slots = new int[32];
+    }
+
+    // Private helper method, hash of the tuple at off in src.
+    private int hash(int[] src, int off) {
+        int h = 0;
+        for (int i = 0; i < width; i++) h = 31 * h + src[off + i];
+        return h;
+    }
+
+    // Private helper method, compares tuple id to the tuple at off in src.
+    private boolean equalsAt(int id, int[] src, int off) {
+        int base = id * width;
+        for (int i = 0; i < width; i++) {
+            if (data[base + i] != src[off + i]) return false;
+        }
+        return true;
+    }
+
+    // Returns the id of the tuple at off in src, -1 if it has not been interned.
+    public int find(int[] src, int off) {
+        int h = hash(src, off);
+        int mask = slots.length - 1;
+        for (int s = KGram.mix(h) & mask; slots[s] != 0; s = (s + 1) & mask) {
+            int id = slots[s] - 1;
+            if (hashes[id] == h && equalsAt(id, src, off)) return id;
+        }
+        return -1;
+    }
+
+    // Returns the id of the tuple at off in src, adding it if it has not been interned.
+    public int intern(int[] src, int off) {
+        int h = hash(src, off);
+        int mask = slots.length - 1;
+        int s = KGram.mix(h) & mask;
+        for (; slots[s] != 0; s = (s + 1) & mask) {
+            int id = slots[s] - 1;
+            if (hashes[id] == h && equalsAt(id, src, off)) return id;
+        }
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            data = Arrays.copyOf(data, size * 2 * width);
+        }
+        System.arraycopy(src, off, data, size * width, width);
+        hashes[size] = h;
+        slots[s] = ++size;
+
+        // Keep the table at most half full
+        if (size * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            mask = slots.length - 1;
+            for (int id = 0; id < size; id++) {
+                int t = KGram.mix(hashes[id]) & mask;
+                while (slots[t] != 0) t = (t + 1) & mask;
+                slots[t] = id + 1;
+            }
+        }
+        return size - 1;
+    }
+
+    // Returns every id ordered by its tuple, compared int by int, so the order only depends on which tuples were
+    // interned and not on when. Sorted by a bottom-up merge sort of the ids, no two of which compare equal.
+    public int[] sorted() {
+        int[] res = new int[size];
+        int[] merged = new int[size];
+        for (int id = 0; id < size; id++) res[id] = id;
+        for (int run = 1; run < size; run *= 2) {
+            for (int lo = 0; lo < size; lo += 2 * run) {
+                int mid = Math.min(lo + run, size);
+                int hi = Math.min(lo + 2 * run, size);
+                int i = lo;
+                int j = mid;
+                for (int k = lo; k < hi; k++) {
+                    merged[k] = j == hi || (i < mid && compare(res[i], res[j]) < 0) ? res[i++] : res[j++];
+                }
+            }
+            int[] swap = res;
+            res = merged;
+            merged = swap;
+        }
+        return res;
+    }
+
+    // Private helper method, compares tuple a to tuple b int by int.
+    private int compare(int a, int b) {
+        for (int i = 0; i < width; i++) {
+            int c = Integer.compare(data[a * width + i], data[b * width + i]);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+
+    // Returns the estimated heap taken by the interner in bytes.
+    public long estimatedBytes() {
+        return (data.length + hashes.length + slots.length) * 4L;
+    }
+
+    // Returns the number of tuples.
+    public int size() {
+        return size;
+    }
+
+    // Returns value j of tuple id.
+    public int get(int id, int j) {
+        return data[id * width + j];
+    }
+
+    // Returns the ints per tuple.
+    public int width() {
+        return width;
+    }
+}
@@ -0,0 +1,130 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+// VoiceLeading scores generated chorales by the part-writing rules they break, so the best of many candidates can be
+// kept without listening to each one. Counted are parallel fifths and octaves, voices crossing the voice below, notes
+// outside each voice's range, and the octave corrections generation had to apply. Each is weighted into a penalty,
+// lower being better. Voices are in Kern's spine order, bass first, and rests break no rule.
+//
+// Every rule is one pass over the pitch columns of a piece, one voice or pair of voices at a time, with only integer
+// arithmetic in the loop. Nothing is allocated, so scoring a piece costs far less than generating it.
+public final class VoiceLeading {
+
+    private static final int VOICES = 4;
+    private static final int[] LOW = {40, 48, 55, 60}; // Lowest pitch of each voice, E2, C3, G3 and C4.
+    private static final int[] HIGH = {60, 67, 74, 79}; // Highest pitch of each voice, C4, G4, D5 and G5.
+    private static final int SOUNDING = ~127; // Mask clearing the bits of every MIDI pitch, rests do not clear.
+    private static final int PARALLEL = 4; // Penalty of each parallel fifth or octave.
+    private static final int CROSSING = 2; // Penalty of each chord with a voice below the next lower voice.
+    private static final int RANGE = 1; // Penalty of each note out of range.
+    private static final int CORRECTION = 3; // Penalty of each octave correction.
+
+    private VoiceLeading() {
+    }
+
+    // A generated piece with the rules it breaks.
+    public static class Candidate {
+        public final int index; // Number of the candidate among those generated.
+        public final Kern piece;
+        public final int parallels;
+        public final int crossings;
+        public final int outOfRange;
+        public final long corrections;
+        public final long penalty; // Weighted sum of the above.
+
+        public Candidate(int index, Kern piece, int parallels, int crossings, int outOfRange, long corrections) {
+            this.index = index;
+            this.piece = piece;
+            this.parallels = parallels;
+            this.crossings = crossings;
+            this.outOfRange = outOfRange;
+            this.corrections = corrections;
+            penalty = penalty(parallels, crossings, outOfRange, corrections);
+        }
+
+        @Override
+        public String toString() {
+            return "candidate " + index + ": penalty " + penalty + ", " + parallels + " parallels, " + crossings
+                    + " crossings, " + outOfRange + " out of range, " + corrections + " octave corrections";
+        }
+    }
+
+    // Returns the penalty of a piece breaking the rules the given number of times.
+    public static long penalty(int parallels, int crossings, int outOfRange, long corrections) {
+        return (long) PARALLEL * parallels + (long) CROSSING * crossings + (long) RANGE * outOfRange
+                + CORRECTION * corrections;
+    }
+
+    // Scores the first length chords of the pitch columns, one per voice, of a piece that needed the given number of
+    // octave corrections.
+    public static Candidate score(int index, Kern piece, int[][] pitch, int length, long corrections) {
+        return new Candidate(index, piece, parallels(pitch, length), crossings(pitch, length),
+                outOfRange(pitch, length), corrections);
+    }
+
+    // Returns the number of parallel fifths and octaves in the first length chords, over every pair of voices: both
+    // voices move the same way from a perfect fifth or octave into the same interval again, modulo octaves.
+    public static int parallels(int[][] pitch, int length) {
+        int res = 0;
+        for (int lower = 0; lower < VOICES; lower++) {
+            for (int upper = lower + 1; upper < VOICES; upper++) {
+                int[] a = pitch[upper];
+                int[] b = pitch[lower];
+                for (int i = 1; i < length; i++) {
+                    if (((a[i - 1] | b[i - 1] | a[i] | b[i]) & SOUNDING) != 0) continue;
+                    int before = ((a[i - 1] - b[i - 1]) % 12 + 12) % 12;
+                    int after = ((a[i] - b[i]) % 12 + 12) % 12;
+                    int da = a[i] - a[i - 1];
+                    int db = b[i] - b[i - 1];
+                    boolean perfect = after == 0 || after == 7;
+                    boolean together = (da > 0 && db > 0) || (da < 0 && db < 0);
+                    res += perfect && before == after && together ? 1 : 0;
+                }
+            }
+        }
+        return res;
+    }
+
+    // Returns the number of times in the first length chords a voice is below the next lower voice.
+    public static int crossings(int[][] pitch, int length) {
+        int res = 0;
+        for (int v = 1; v < VOICES; v++) {
+            int[] a = pitch[v];
+            int[] b = pitch[v - 1];
+            for (int i = 0; i < length; i++) res += ((a[i] | b[i]) & SOUNDING) == 0 && a[i] < b[i] ? 1 : 0;
+        }
+        return res;
+    }
+
+    // Returns the number of notes in the first length chords outside the range of their voice.
+    public static int outOfRange(int[][] pitch, int length) {
+        int res = 0;
+        for (int v = 0; v < VOICES; v++) {
+            int[] a = pitch[v];
+            int low = LOW[v];
+            int high = HIGH[v];
+            for (int i = 0; i < length; i++) res += (a[i] & SOUNDING) == 0 && (a[i] < low || a[i] > high) ? 1 : 0;
+        }
+        return res;
+    }
+
+    // Tests class methods, command line input K-Gram length, generated length, number of candidates, number kept and
+    // seed, with an optional model file as for BachBot.loadOrTrain().
+    public static void main(String[] args) throws Exception {
+        int kLen = Integer.parseInt(args[0]);
+        int length = Integer.parseInt(args[1]);
+        int n = Integer.parseInt(args[2]);
+        int m = Integer.parseInt(args[3]);
+        long seed = Long.parseLong(args[4]);
+        Path model = args.length > 5 ? Paths.get(args[5]) : null;
+        BachBot bot = BachBot.loadOrTrain(kLen, model);
+        bot.publish();
+
+        long start = System.nanoTime();
+        List<Candidate> best = bot.generateBest(n, m, length, seed, Runtime.getRuntime().availableProcessors());
+        long ms = (System.nanoTime() - start) / 1000000;
+        for (Candidate c : best) StdOut.println(c);
+        StdOut.println(n + " candidates in " + ms + " ms");
+    }
+}
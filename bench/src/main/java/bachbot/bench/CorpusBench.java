@@ -0,0 +1,48 @@
+package bachbot.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Benchmarks over the whole corpus: parsing all 370 chorales, and training a BachBot on them at each K-Gram length.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CorpusBench {
+
+    @Param({"1", "3", "10", "40"})
+    public int k;
+
+    private List<Object> corpus; // Every chorale, parsed once.
+
+    @Setup
+    public void setup() throws Throwable {
+        corpus = Project.corpus();
+    }
+
+    // Does not depend on k, reported once per k.
+    @Benchmark
+    public List<Object> parseCorpus() throws Throwable {
+        return Project.corpus();
+    }
+
+    // BachBot.add() of every parsed chorale into a new BachBot, then publishing the model.
+    @Benchmark
+    public Object train() throws Throwable {
+        return Project.train(k, corpus);
+    }
+}
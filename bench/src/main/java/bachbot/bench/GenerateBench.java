@@ -0,0 +1,47 @@
+package bachbot.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Benchmarks of BachBot.generate() on a model trained on the whole corpus, from the first chorale. The initial K-Gram
+// comes from the model's seed index, so no chorale is read or parsed.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GenerateBench {
+
+    @Param({"1", "3", "10", "40"})
+    public int k;
+
+    @Param({"100", "1000"})
+    public int length;
+
+    private Object bot; // BachBot trained on the corpus.
+    private SplittableRandom random;
+
+    @Setup
+    public void setup() throws Throwable {
+        bot = Project.train(k, Project.corpus());
+        random = new SplittableRandom(42);
+    }
+
+    @Benchmark
+    public Object generate() throws Throwable {
+        return (Object) Project.GENERATE.invokeExact(bot, length, "chor001.krn", random);
+    }
+}
@@ -0,0 +1,58 @@
+package bachbot.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Benchmarks of one Kern file: parsing it, reading back every pitch, and converting it to a jMusic Score. The files
+// cover a short chorale, the one with a breve and the last one.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernBench {
+
+    @Param({"chor001.krn", "chor130.krn", "chor371.krn"})
+    public String file;
+
+    private Object kern; // file, parsed once.
+    private int length; // Number of chords of file.
+
+    @Setup
+    public void setup() throws Throwable {
+        kern = (Object) Project.KERN.invokeExact(file);
+        length = (int) Project.LENGTH.invokeExact(kern);
+    }
+
+    @Benchmark
+    public Object parse() throws Throwable {
+        return (Object) Project.KERN.invokeExact(file);
+    }
+
+    // Reads every pitch of every voice, the way BachBot.add() walks a chorale.
+    @Benchmark
+    public int getPitch() throws Throwable {
+        int sum = 0;
+        for (int v = 0; v < 4; v++) {
+            for (int i = 0; i < length; i++) sum += (int) Project.GET_PITCH.invokeExact(kern, v, i);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public Object getScore() throws Throwable {
+        return (Object) Project.GET_SCORE.invokeExact(kern, 6);
+    }
+}
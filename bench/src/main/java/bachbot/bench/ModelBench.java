@@ -0,0 +1,67 @@
+package bachbot.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Benchmarks of single newChordST calls on the corpus windows: put() of a window into a model that has seen the whole
+// corpus once, so every key already exists, and gen() on a trained model. Each call takes the next window in turn.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelBench {
+
+    @Param({"1", "3", "10", "40"})
+    public int k;
+
+    private Project.Windows windows; // Every training window of length k.
+    private Object training; // newChordST trained on every window, still in training mode.
+    private Object trained; // newChordST of a BachBot trained on the corpus and published.
+    private SplittableRandom random;
+    private int next; // Window used by the next call.
+
+    @Setup
+    public void setup() throws Throwable {
+        windows = new Project.Windows(k, Project.corpus());
+        training = (Object) Project.NEW_CHORD_ST.invokeExact(k);
+        for (int i = 0; i < windows.size(); i++) {
+            Project.PUT.invokeExact(training, windows.pitch[i], windows.ticks[i], windows.change[i], windows.next[i]);
+        }
+        trained = (Object) Project.CHORD_ST.invokeExact(Project.train(k, Project.corpus()));
+        random = new SplittableRandom(42);
+    }
+
+    // Private helper method, returns the index of the next window.
+    private int window() {
+        int i = next;
+        next = i + 1 == windows.size() ? 0 : i + 1;
+        return i;
+    }
+
+    @Benchmark
+    public Object put() throws Throwable {
+        int i = window();
+        Project.PUT.invokeExact(training, windows.pitch[i], windows.ticks[i], windows.change[i], windows.next[i]);
+        return training;
+    }
+
+    @Benchmark
+    public Object gen() throws Throwable {
+        int i = window();
+        return (Object) Project.GEN.invokeExact(trained, windows.pitch[i], windows.ticks[i], random);
+    }
+}
@@ -0,0 +1,150 @@
+package bachbot.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Project gives the benchmarks access to the BachBot classes. Those live in the default package, which JMH does not
+// accept for benchmarks and which classes in a named package can not refer to, so every entry point is looked up once
+// into a constant MethodHandle typed over Object. The JIT inlines invokeExact() on a constant handle like a direct
+// call, so the handles do not show up in the measurements.
+final class Project {
+
+    static final MethodHandle KERN; // new Kern(String)
+    static final MethodHandle LENGTH; // Kern.length()
+    static final MethodHandle GET_PITCH; // Kern.getPitch(int, int)
+    static final MethodHandle GET_TICKS; // Kern.getTicks(int, int)
+    static final MethodHandle GET_SCORE; // Kern.getScore(int)
+    static final MethodHandle BACHBOT; // new BachBot(int)
+    static final MethodHandle ADD; // BachBot.add(Kern)
+    static final MethodHandle PUBLISH; // BachBot.publish()
+    static final MethodHandle GENERATE; // BachBot.generate(int, String, SplittableRandom)
+    static final MethodHandle CHORD_ST; // BachBot.chordST
+    static final MethodHandle NEW_CHORD_ST; // new newChordST(int)
+    static final MethodHandle PUT; // newChordST.put(int[][], int[][], int[], int[])
+    static final MethodHandle GEN; // newChordST.gen(int[][], int[][], SplittableRandom)
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> kern = Class.forName("Kern");
+            Class<?> bot = Class.forName("BachBot");
+            Class<?> st = Class.forName("newChordST");
+
+            KERN = lookup.findConstructor(kern, MethodType.methodType(void.class, String.class))
+                    .asType(MethodType.methodType(Object.class, String.class));
+            LENGTH = lookup.findVirtual(kern, "length", MethodType.methodType(int.class))
+                    .asType(MethodType.methodType(int.class, Object.class));
+            GET_PITCH = lookup.findVirtual(kern, "getPitch", MethodType.methodType(int.class, int.class, int.class))
+                    .asType(MethodType.methodType(int.class, Object.class, int.class, int.class));
+            GET_TICKS = lookup.findVirtual(kern, "getTicks", MethodType.methodType(int.class, int.class, int.class))
+                    .asType(MethodType.methodType(int.class, Object.class, int.class, int.class));
+            GET_SCORE = lookup.findVirtual(kern, "getScore",
+                    MethodType.methodType(Class.forName("jm.music.data.Score"), int.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, int.class));
+            BACHBOT = lookup.findConstructor(bot, MethodType.methodType(void.class, int.class))
+                    .asType(MethodType.methodType(Object.class, int.class));
+            ADD = lookup.findVirtual(bot, "add", MethodType.methodType(void.class, kern))
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class));
+            PUBLISH = lookup.findVirtual(bot, "publish", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            GENERATE = lookup.findVirtual(bot, "generate",
+                    MethodType.methodType(kern, int.class, String.class, SplittableRandom.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, int.class, String.class,
+                            SplittableRandom.class));
+            CHORD_ST = lookup.findGetter(bot, "chordST", st)
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            NEW_CHORD_ST = lookup.findConstructor(st, MethodType.methodType(void.class, int.class))
+                    .asType(MethodType.methodType(Object.class, int.class));
+            PUT = lookup.findVirtual(st, "put",
+                    MethodType.methodType(void.class, int[][].class, int[][].class, int[].class, int[].class))
+                    .asType(MethodType.methodType(void.class, Object.class, int[][].class, int[][].class, int[].class,
+                            int[].class));
+            GEN = lookup.findVirtual(st, "gen", MethodType.methodType(
+                    Class.forName("newChordST$StupidAssTuple"), int[][].class, int[][].class, SplittableRandom.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, int[][].class, int[][].class,
+                            SplittableRandom.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Project() {
+    }
+
+    // Returns the file names of the whole corpus, chor150.krn is missing from the database.
+    static List<String> chorales() {
+        List<String> res = new ArrayList<>();
+        for (int i = 1; i < 372; i++) {
+            if (i != 150) res.add(String.format("chor%03d.krn", i));
+        }
+        return res;
+    }
+
+    // Parses the whole corpus.
+    static List<Object> corpus() throws Throwable {
+        List<Object> res = new ArrayList<>();
+        for (String name : chorales()) res.add((Object) KERN.invokeExact(name));
+        return res;
+    }
+
+    // Trains a BachBot of K-Gram length k on the parsed corpus and publishes its model.
+    static Object train(int k, List<Object> corpus) throws Throwable {
+        Object bot = (Object) BACHBOT.invokeExact(k);
+        for (Object kern : corpus) ADD.invokeExact(bot, kern);
+        PUBLISH.invokeExact(bot);
+        return bot;
+    }
+
+    // Training windows of one K-Gram length, laid out the way BachBot.add() hands them to newChordST.put().
+    static final class Windows {
+        final int[][][] pitch; // K-Gram pitches of each window.
+        final int[][][] ticks; // K-Gram durations of each window.
+        final int[][] change; // Succeeding pitch change of each window.
+        final int[][] next; // Succeeding durations of each window.
+
+        // Cuts every window of length k out of the parsed corpus, wrapping around at the end of each chorale.
+        Windows(int k, List<Object> corpus) throws Throwable {
+            List<int[][]> p = new ArrayList<>();
+            List<int[][]> t = new ArrayList<>();
+            List<int[]> c = new ArrayList<>();
+            List<int[]> n = new ArrayList<>();
+            for (Object kern : corpus) {
+                int len = (int) LENGTH.invokeExact(kern);
+                for (int i = 0; i < len; i++) {
+                    int[][] pSeq = new int[k][4];
+                    int[][] tSeq = new int[k][4];
+                    for (int j = 0; j < k; j++) {
+                        for (int v = 0; v < 4; v++) {
+                            pSeq[j][v] = (int) GET_PITCH.invokeExact(kern, v, (i + j) % len);
+                            tSeq[j][v] = (int) GET_TICKS.invokeExact(kern, v, (i + j) % len);
+                        }
+                    }
+                    int[] change = new int[4];
+                    int[] next = new int[4];
+                    for (int v = 0; v < 4; v++) {
+                        change[v] = (int) GET_PITCH.invokeExact(kern, v, (i + k) % len)
+                                - (int) GET_PITCH.invokeExact(kern, v, (i + k - 1) % len);
+                        next[v] = (int) GET_TICKS.invokeExact(kern, v, (i + k) % len);
+                    }
+                    p.add(pSeq);
+                    t.add(tSeq);
+                    c.add(change);
+                    n.add(next);
+                }
+            }
+            pitch = p.toArray(new int[0][][]);
+            ticks = t.toArray(new int[0][][]);
+            change = c.toArray(new int[0][]);
+            next = n.toArray(new int[0][]);
+        }
+
+        // Returns the number of windows.
+        int size() {
+            return pitch.length;
+        }
+    }
+}
@@ -1,120 +1,383 @@
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Objects;
+import java.util.SplittableRandom;
 
+// newChordST stores, for every K-Gram of chords seen in training, the frequency of each succeeding chord. K-Grams are
+// keyed by their voice intervals and durations, so transposed passages share a key. Keys and successors are packed
+// into ints and interned into a ContextTrie, where K-Grams of every order share their suffixes, instead of being
+// concatenated into Strings. A trained model is frozen into a flat ChordSnapshot for sampling, which can also be saved
+// to and memory-mapped from a binary file.
+//
+// Every put() counts the succeeding chord under each suffix of the K-Gram, from its newest chord alone up to the full
+// length, so one model holds every order from 1 to kLen. Generation backs off to the longest suffix of the context
+// that was seen in training instead of failing on an unseen K-Gram.
+//
+// Every freeze() also publishes a read-only view of the new snapshot. Training never touches a published view, so
+// readers can keep sampling from one while the model is trained further and frozen again; they pick up the new
+// snapshot by taking the next view.
 public class newChordST {
 
-    private final int kLen; // Length of K-Gram.
-    private final ST<String, ST<String, Integer>> freq; // Frequency of succeeding chord table.
+    private final int kLen; // Longest length of K-Gram.
+    private ContextTrie trie; // Frequency of succeeding chord table, null until a loaded model is trained further.
+    private volatile ChordSnapshot snapshot; // Frozen form of trie, null while the model is being trained.
+    private volatile newChordST view; // Read-only view of the latest snapshot, kept while the model is trained.
+    private volatile StateGraph graph; // Snapshot compiled for generation, built on first use.
+    private volatile ChordIndex index; // Single chords of the snapshot by similarity, built on first miss.
+    private volatile long trieBytes; // Estimated heap of trie at the latest freeze(), readable while it is trained.
+    private boolean training; // True from the first change after a freeze() on, only used by the training thread.
+    private final boolean readOnly; // True for published views.
 
     private static final int VOICES = 4;
+    public static final int TICKS = Kern.TICKS; // Ticks per jMusic beat of the packed durations.
 
     public newChordST(int len) {
         kLen = len;
-        freq = new ST<>();
+        trie = new ContextTrie();
+        training = true;
+        readOnly = false;
     }
 
-    // Private helper method, transforms a 2D int array into a String sequence by iterating through each array and
-    // concatenating the integers as strings.
-    private static String transform(int[][] distSeq, double[][] timeSeq) {
-        StringBuilder res = new StringBuilder();
-        for (int[] intArray : distSeq) {
-            for (int anInt : intArray) {
-                res.append(anInt);
-            }
-        }
-        for (double[] doubleArray : timeSeq) {
-            for (double aDouble : doubleArray) {
-                res.append(aDouble);
-            }
+    // Private constructor, wraps a snapshot, either loaded or being published. The tables of a loaded model are only
+    // rebuilt if it is trained further, a read-only view can not be trained.
+    private newChordST(ChordSnapshot snapshot, boolean readOnly) {
+        kLen = snapshot.kLen();
+        this.readOnly = readOnly;
+        this.view = readOnly ? this : new newChordST(snapshot, true);
+        this.snapshot = snapshot;
+    }
+
+    // Returns the longest length of K-Gram.
+    public int kLen() {
+        return kLen;
+    }
+
+    // Returns the number of distinct K-Grams of every order in the latest frozen snapshot, 0 before the first
+    // freeze(). Only the published view is read, so it is safe to call from any thread while the model is trained.
+    public int size() {
+        newChordST v = view;
+        return v == null ? 0 : v.snapshot.size();
+    }
+
+    // Returns the number of (K-Gram, successor) entries over every order in the latest frozen snapshot, as size().
+    public int successors() {
+        newChordST v = view;
+        return v == null ? 0 : v.snapshot.successors();
+    }
+
+    // Returns the estimated heap taken by the training tables as of the latest freeze() and by the latest snapshot,
+    // with the state graph and chord index compiled from it, in bytes. Safe to call from any thread, as size().
+    public long estimatedBytes() {
+        newChordST v = view;
+        if (v == null) return 0;
+        StateGraph g = v.graph;
+        ChordIndex i = v.index;
+        return trieBytes + v.snapshot.estimatedBytes() + (g == null ? 0 : g.estimatedBytes())
+                + (i == null ? 0 : i.estimatedBytes());
+    }
+
+    // Private helper method, packs a K-Gram of chords into ints. Each chord becomes the distance between its four
+    // voices followed by its four durations in ticks.
+    private static int[] transform(int[][] rawKey, int[][] tickSeq) {
+        int[] res = new int[rawKey.length * KGram.CHORD_WIDTH];
+        int off = 0;
+        for (int i = 0; i < rawKey.length; i++) {
+            off = dist(rawKey[i][0], rawKey[i][1], rawKey[i][2], rawKey[i][3], res, off);
+            for (int j = 0; j < VOICES; j++) res[off++] = tickSeq[i][j];
         }
-        return res.toString();
+        return res;
+    }
+
+    // Packs one chord, its four pitches and durations in ticks, into dst at off. Returns the offset after the chord.
+    public static int packChord(int[] pitch, int[] ticks, int[] dst, int off) {
+        off = dist(pitch[0], pitch[1], pitch[2], pitch[3], dst, off);
+        for (int j = 0; j < VOICES; j++) dst[off++] = ticks[j];
+        return off;
     }
 
-    // Private helper method, overrides method to transform 1D int arrays using the same method.
-    private static String transform(int[] next, double[] time) {
+    // Private helper method, packs a succeeding change and its durations in ticks into ints.
+    private static int[] transform(int[] next, int[] ticks) {
         if (next.length != VOICES) throw new IllegalArgumentException("Incorrect transform dimensions");
-        StringBuilder res = new StringBuilder();
-        for (int i = 0; i < VOICES; i++) res.append(next[i]).append(",");
-        for (int i = 0; i < VOICES; i++) res.append(time[i]).append(",");
-        return res.toString();
+        int[] res = new int[ContextTrie.VALUE_WIDTH];
+        for (int i = 0; i < VOICES; i++) {
+            res[i] = next[i];
+            res[i + VOICES] = ticks[i];
+        }
+        return res;
+    }
+
+    // Private helper method, distance calculation between four integers, written to res at off. Returns the offset
+    // after the written values.
+    private static int dist(int a, int b, int c, int d, int[] res, int off) {
+        res[off] = b - a;
+        res[off + 1] = c - b;
+        res[off + 2] = d - c;
+        return off + 3;
+    }
+
+    // Compiles the model into a snapshot with an alias table per K-Gram and publishes a view of it, called once
+    // training is done. Further put() calls thaw the model again. Must not run alongside training. The training
+    // tables are renumbered by ContextTrie.sorted() first, so models holding the same counts freeze into the same
+    // snapshot, and sample the same pieces from the same seed, whatever order they were trained or merged in.
+    public void freeze() {
+        if (snapshot != null) return;
+        trie = trie.sorted();
+        ChordSnapshot snap = ChordSnapshot.of(kLen, TICKS, trie);
+        trieBytes = trie.estimatedBytes();
+        view = new newChordST(snap, true);
+        snapshot = snap;
+        training = false;
+    }
+
+    // Returns the read-only view published by the latest freeze(), null if the model has never been frozen. The view
+    // is unaffected by further training and safe to read from any thread; it is the current model while isFrozen().
+    public newChordST view() {
+        return view;
+    }
+
+    // Returns true if the model is frozen.
+    public boolean isFrozen() {
+        return snapshot != null;
     }
 
-    // Private helper method, Distance calculation between four integers.
-    private static int[] dist(int a, int b, int c, int d) {
-        return new int[]{b - a, c - b, d - c};
+    // Returns the frozen snapshot of the model, freezing it first.
+    public ChordSnapshot snapshot() {
+        freeze();
+        return snapshot;
     }
 
-    // Private helper method, generates a random string based on input ST weights, does not mutate input.
-    private static String rand(ST<String, Integer> freqTable) {
-        int totalOcc = 0;
-        for (String k : freqTable) {
-            totalOcc += freqTable.get(k);
+    // Returns the snapshot compiled into a StateGraph, freezing the model first. Compiled once per snapshot, the
+    // first caller builds it and the others wait.
+    public StateGraph graph() {
+        freeze();
+        StateGraph res = graph;
+        if (res != null) return res;
+        synchronized (this) {
+            if (graph == null) graph = new StateGraph(snapshot);
+            return graph;
+        }
+    }
+
+    // Private helper method, rebuilds the training tables of a model loaded from a file.
+    private void materialize() {
+        if (trie == null) trie = ContextTrie.of(snapshot);
+    }
+
+    // Private helper method, returns the model to training mode. The published view is kept.
+    private void thaw() {
+        if (readOnly) throw new IllegalStateException("Read-only model view");
+        materialize();
+        snapshot = null;
+        graph = null;
+        index = null;
+        training = true;
+    }
+
+    // Prunes the model until its snapshot is estimated to fit in budgetBytes. Contexts of two chords or more seen
+    // fewer than a count threshold are dropped, the threshold raised step by step until the model fits, and each
+    // context keeps only its maxSuccessors most frequent successors. Single chord contexts always stay, so generation
+    // backs off to a surviving suffix and never runs out of K-Grams. Counts, totals and alias tables are stored in the
+    // narrowest width that fits when the model is next frozen. Returns a report of what was removed.
+    public Compaction compact(long budgetBytes, int maxSuccessors) {
+        if (maxSuccessors < 1) throw new IllegalArgumentException("Must keep at least one successor");
+        thaw();
+        int nodes = trie.nodes();
+        int[] totals = trie.totals();
+        int[] pairs = new int[nodes];
+        int maxCount = 0;
+        for (int p = 0; p < trie.pairs(); p++) {
+            pairs[trie.pairNode(p)]++;
+            maxCount = Math.max(maxCount, trie.pairCount(p));
+        }
+        int maxTotal = 0;
+        int maxPairs = 0;
+        for (int n = 1; n < nodes; n++) {
+            maxTotal = Math.max(maxTotal, totals[n]);
+            maxPairs = Math.max(maxPairs, pairs[n]);
         }
-        int randInt = (int) (Math.random() * totalOcc);
-        for (String k : freqTable) {
-            for (int i = 0; i < freqTable.get(k); i++) {
-                if (randInt == 0) return k;
-                randInt--;
+        int chordCount = trie.chords().size();
+        int valueCount = trie.values().size();
+
+        // Raise the threshold by about half at a time until the estimate fits
+        int minCount = 1;
+        boolean[] keep;
+        while (true) {
+            keep = trie.survivors(totals, minCount);
+            int keys = 0;
+            int successors = 0;
+            for (int n = 1; n < nodes; n++) {
+                if (!keep[n]) continue;
+                keys++;
+                successors += Math.min(pairs[n], maxSuccessors);
             }
+            long bytes = ChordSnapshot.estimatedBytes(keys, successors, chordCount, valueCount, maxCount, maxTotal,
+                    Math.min(maxPairs, maxSuccessors));
+            if (bytes <= budgetBytes || minCount > maxTotal) break;
+            minCount += Math.max(1, minCount / 2);
+        }
+
+        ContextTrie pruned = trie.pruned(keep, maxSuccessors);
+        int[] removed = new int[kLen + 1];
+        for (int n = 1; n < nodes; n++) if (!keep[n]) removed[trie.order(n)]++;
+        int[] prunedTotals = pruned.totals();
+        int[] prunedPairs = new int[pruned.nodes()];
+        int prunedMax = 0;
+        for (int p = 0; p < pruned.pairs(); p++) {
+            prunedPairs[pruned.pairNode(p)]++;
+            prunedMax = Math.max(prunedMax, pruned.pairCount(p));
         }
-        throw new RuntimeException("Incorrect random generation");
+        int prunedMaxTotal = 0;
+        int prunedMaxPairs = 0;
+        for (int n = 1; n < pruned.nodes(); n++) {
+            prunedMaxTotal = Math.max(prunedMaxTotal, prunedTotals[n]);
+            prunedMaxPairs = Math.max(prunedMaxPairs, prunedPairs[n]);
+        }
+        Compaction res = new Compaction(budgetBytes, minCount, maxSuccessors, nodes - 1, pruned.nodes() - 1,
+                trie.pairs(), pruned.pairs(),
+                ChordSnapshot.estimatedBytes(nodes - 1, trie.pairs(), chordCount, valueCount, maxCount, maxTotal,
+                        maxPairs),
+                ChordSnapshot.estimatedBytes(pruned.nodes() - 1, pruned.pairs(), pruned.chords().size(),
+                        pruned.values().size(), prunedMax, prunedMaxTotal, prunedMaxPairs),
+                removed, trie.capped(keep, maxSuccessors));
+        trie = pruned;
+        return res;
     }
 
-    public class StupidAssTuple {
+    // Saves the frozen model to path, see ChordSnapshot for the format.
+    public void save(Path path) throws IOException {
+        freeze();
+        snapshot.save(path);
+    }
+
+    // Saves the counts of every full length K-Gram to path, see CountFile for the format. The model must not have been
+    // compacted.
+    public void saveCounts(Path path) throws IOException {
+        materialize();
+        CountFile.write(kLen, TICKS, trie, path);
+    }
+
+    // Loads a model saved by save(). The file is memory-mapped and read lazily as K-Grams are looked up.
+    public static newChordST load(Path path) throws IOException {
+        ChordSnapshot snap = ChordSnapshot.load(path);
+        if (snap.ticks() != TICKS) throw new IllegalArgumentException("Incompatible model time grid");
+        return new newChordST(snap, false);
+    }
+
+    // Succeeding pitch changes and durations in ticks of one chord. Tuples returned by a frozen model are shared and
+    // must not be mutated.
+    public static class StupidAssTuple {
         public final int[] dPitch;
-        public final double[] time;
+        public final int[] ticks;
 
-        public StupidAssTuple(int[] dDa, double[] timea) {
+        public StupidAssTuple(int[] dDa, int[] ticksa) {
             dPitch = dDa;
-            this.time = timea;
+            this.ticks = ticksa;
         }
     }
 
-    // Private helper method, functions as an opposite transform(int[]), parses a String into array.
-    private StupidAssTuple unpack(String dD) {
-        List<String> items = Arrays.asList(dD.split("\\s*,\\s*"));
-        int[] pitchRes = new int[VOICES];
-        double[] timeRes = new double[VOICES];
+    // Returns the entry of the longest seen suffix of the kLen packed chords at off in packed, -1 if not even the
+    // newest chord appears. hash must be the KGram hash of all kLen chords. Freezes the model, entries are only valid
+    // until it is trained further.
+    public int find(int[] packed, int off, int hash) {
+        return find(packed, off, kLen, hash);
+    }
 
-        for (int i = 0; i < VOICES; i++) {
-            pitchRes[i] = Integer.parseInt(items.get(i));
-            timeRes[i] = Double.parseDouble(items.get(i + VOICES));
+    // Returns the entry of the longest seen suffix of the given number of packed chords at off in packed, as find().
+    public int find(int[] packed, int off, int length, int hash) {
+        freeze();
+        int e = snapshot.find(packed, off, length, hash);
+        for (int order = length - 1; e < 0 && order > 0; order--) {
+            int suffix = off + (length - order) * KGram.CHORD_WIDTH;
+            e = snapshot.find(packed, suffix, order, KGram.hash(packed, suffix, order));
         }
-        return new StupidAssTuple(pitchRes, timeRes);
+        return e;
     }
 
-    // Generates a succeeding array based on input K-Gram.
-    public StupidAssTuple gen(int[][] rawKey, double[][] rawTime) {
-        int[][] key = new int[rawKey.length][VOICES - 1];
-        for (int i = 0; i < rawKey.length; i++) {
-            key[i] = dist(rawKey[i][0], rawKey[i][1], rawKey[i][2], rawKey[i][3]);
+    // Returns the entry of the known K-Gram closest to the given number of packed chords at off in packed, for K-Grams
+    // whose newest chord was never seen, where find() gives up. The newest chord is swapped for the most similar one
+    // the model has seen, found in a ChordIndex with bounded effort, and the longest seen suffix of the result is
+    // returned. Returns -1 only for an empty model.
+    public int nearest(int[] packed, int off, int length) {
+        freeze();
+        ChordIndex idx = index;
+        if (idx == null) {
+            synchronized (this) {
+                if (index == null) index = new ChordIndex(snapshot);
+                idx = index;
+            }
         }
-        if (!freq.contains(transform(key, rawTime))) throw new IllegalArgumentException("K-Gram Does Not Appear");
+        int width = KGram.CHORD_WIDTH;
+        int newest = idx.nearest(packed, off + (length - 1) * width);
+        if (newest < 0) return -1;
+        int[] key = Arrays.copyOfRange(packed, off, off + length * width);
+        for (int j = 0; j < width; j++) key[(length - 1) * width + j] = snapshot.chord(newest, j);
+        int res = find(key, 0, length, KGram.hash(key));
+        return res < 0 ? newest : res;
+    }
 
-        return unpack(Objects.requireNonNull(rand(freq.get(transform(key, rawTime)))));
+    // Returns the number of chords of the K-Gram of entry e.
+    public int order(int e) {
+        return snapshot.order(e);
     }
 
-    // Analogous to the ST put() method, works with integer arrays.
-    public void put(int[][] rawKey, double[][] timeSeq, int[] val, double[] valTime) {
+    // Returns a successor of entry e sampled by weight, drawing from random.
+    public int sample(int e, SplittableRandom random) {
+        long columns = snapshot.first(e + 1) - snapshot.first(e);
+        return snapshot.sample(e, random.nextLong(columns * snapshot.total(e)));
+    }
+
+    // Returns the pitch change of successor s in voice.
+    public int change(int s, int voice) {
+        return snapshot.value(s, voice);
+    }
+
+    // Returns the duration in ticks of successor s in voice.
+    public int ticks(int s, int voice) {
+        return snapshot.value(s, voice + VOICES);
+    }
+
+    // Generates a succeeding array based on input K-Gram.
+    public StupidAssTuple gen(int[][] rawKey, int[][] rawTicks) {
+        return gen(rawKey, rawTicks, new SplittableRandom());
+    }
+
+    // Generates a succeeding array based on input K-Gram, drawing from random. Backs off to the longest suffix of
+    // the K-Gram that appears, or to the nearest() known K-Gram if not even its newest chord does.
+    public StupidAssTuple gen(int[][] rawKey, int[][] rawTicks, SplittableRandom random) {
+        int[] key = transform(rawKey, rawTicks);
+        int e = find(key, 0, rawKey.length, KGram.hash(key));
+        if (e < 0) e = nearest(key, 0, rawKey.length);
+        if (e < 0) throw new IllegalStateException("Model has no K-Grams");
+        return snapshot.decoded(sample(e, random));
+    }
+
+    // Analogous to the ST put() method, works with integer arrays. The succeeding chord is counted under every
+    // suffix of the K-Gram.
+    public void put(int[][] rawKey, int[][] tickSeq, int[] val, int[] valTicks) {
         assert rawKey.length == kLen : "Incorrect K-Gram Length";
         assert val.length == VOICES : "Incorrect Value Length";
-        int[][] key = new int[rawKey.length][VOICES - 1];
-        for (int i = 0; i < rawKey.length; i++) {
-            key[i] = dist(rawKey[i][0], rawKey[i][1], rawKey[i][2], rawKey[i][3]);
-        }
 
-        String tempKey = transform(key, timeSeq);
-        String tempVal = transform(val, valTime);
+        if (!training) thaw();
+        int[] packed = transform(rawKey, tickSeq);
+        int[] value = transform(val, valTicks);
+        trie.add(packed, 0, rawKey.length, value, 0, 1);
+    }
 
-        if (!freq.contains(tempKey)) {
-            freq.put(tempKey, new ST<>());
-            freq.get(tempKey).put(tempVal, 1);
-        } else if (freq.get(tempKey).contains(tempVal)) {
-            freq.get(tempKey).put(tempVal, freq.get(tempKey).get(tempVal) + 1);
-        } else {
-            freq.get(tempKey).put(tempVal, 1);
-        }
+    // Counts count occurrences of the packed successor at voff in value after every suffix of the full length packed
+    // K-Gram at off in packed, as put() counts one occurrence of an unpacked K-Gram.
+    public void put(int[] packed, int off, int[] value, int voff, int count) {
+        if (!training) thaw();
+        trie.add(packed, off, kLen, value, voff, count);
+    }
+
+    // Adds every K-Gram and successor count of other to this model. Keys and successors new to this model are
+    // appended in other's order, so merging shards trained on consecutive slices of a corpus, in slice order, gives
+    // exactly the model serial training over the whole corpus would.
+    public void merge(newChordST other) {
+        if (other.kLen != kLen) throw new IllegalArgumentException("Incorrect K-Gram Length");
+        thaw();
+        other.materialize();
+        trie.merge(other.trie);
     }
 
     // Tests class methods.